@@ -0,0 +1,111 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.TreeFormatter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Synthetic repository for the benchmarks: a destination branch with a
+ * staging ref of changes on top of it. Every staged commit adds its own file
+ * and has a Change-Id footer, like the commits of a real staging ref.
+ */
+class QtBenchmarkRepository implements AutoCloseable {
+
+    static final PersonIdent IDENT = new PersonIdent("Qt Benchmark", "benchmark@qt.io", 1546300800000L, 0);
+
+    final InMemoryRepository repo;
+    /** Head of the destination branch. */
+    ObjectId branchHead;
+    /** Staged commits, bottom first. */
+    final List<ObjectId> staged = new ArrayList<>();
+    /** Change-Ids of the staged commits, bottom first. */
+    final List<String> changeIds = new ArrayList<>();
+
+    private final Map<String, ObjectId> files = new TreeMap<>();
+    private int counter;
+
+    QtBenchmarkRepository() {
+        repo = new InMemoryRepository(new DfsRepositoryDescription("benchmark"));
+    }
+
+    /**
+     * Creates the destination branch with a history of commits, and the given
+     * number of staged commits on top of it.
+     */
+    static QtBenchmarkRepository create(int branchCommits, int stagedCommits) throws IOException {
+        QtBenchmarkRepository r = new QtBenchmarkRepository();
+        try (ObjectInserter ins = r.repo.newObjectInserter()) {
+            ObjectId head = null;
+            for (int i = 0; i < branchCommits; i++) {
+                head = r.commit(ins, head, "Branch commit " + i, false);
+            }
+            r.branchHead = head;
+            for (int i = 0; i < stagedCommits; i++) {
+                head = r.commit(ins, head, "Staged change " + i, true);
+                r.staged.add(head);
+            }
+            ins.flush();
+        }
+        return r;
+    }
+
+    /** Head of the staging ref. */
+    ObjectId getStagingHead() {
+        return staged.isEmpty() ? branchHead : staged.get(staged.size() - 1);
+    }
+
+    /**
+     * Adds a commit on top of a parent, changing a file of its own.
+     * @param changeId True if the commit gets a Change-Id footer.
+     */
+    ObjectId commit(ObjectInserter ins, ObjectId parent, String subject, boolean changeId) throws IOException {
+        int n = counter++;
+        String content = "content of file " + n + "\n";
+        files.put(String.format("file%06d.txt", n), ins.insert(Constants.OBJ_BLOB, content.getBytes(UTF_8)));
+
+        TreeFormatter tree = new TreeFormatter();
+        for (Map.Entry<String, ObjectId> file : files.entrySet()) {
+            tree.append(file.getKey(), FileMode.REGULAR_FILE, file.getValue());
+        }
+
+        StringBuilder message = new StringBuilder(subject).append("\n\nSynthetic commit for benchmarking.\n");
+        if (changeId) {
+            String id = "I" + ins.idFor(Constants.OBJ_BLOB, subject.getBytes(UTF_8)).name();
+            changeIds.add(id);
+            message.append("\nTask-number: QTBUG-").append(n)
+                   .append("\nChange-Id: ").append(id)
+                   .append("\nReviewed-by: Qt Benchmark <benchmark@qt.io>\n");
+        }
+
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(ins.insert(tree));
+        if (parent != null) commit.setParentId(parent);
+        commit.setAuthor(IDENT);
+        commit.setCommitter(IDENT);
+        commit.setMessage(message.toString());
+        return ins.insert(commit);
+    }
+
+    @Override
+    public void close() {
+        repo.close();
+    }
+}
@@ -0,0 +1,202 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.query.change.ChangeData;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ThreeWayMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the staging engine on an in-memory repository, without a
+ * Gerrit server. Run with "mvn -P benchmarks verify" or
+ * "bazel run plugins/gerrit-plugin-qt-workflow:qtcodereview_benchmarks",
+ * the results are written as JSON so that runs can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QtStagingBenchmark {
+
+    private static final Project.NameKey PROJECT = new Project.NameKey("benchmark");
+    private static final Branch.NameKey BRANCH = new Branch.NameKey(PROJECT, "refs/heads/master");
+
+    /** Number of staged changes on top of the branch. */
+    @Param({"10", "100", "1000"})
+    public int stagedChanges;
+
+    private QtBenchmarkRepository fixture;
+    private RevWalk revWalk;
+    private ObjectId movedBranchHead;
+    private Map<Change.Key, ChangeData> integrating;
+    private Map<Change.Key, ChangeData> staged;
+    private String submitMessage;
+    private Path indexFile;
+    private QtChangeIdIndex.Table index;
+    private final QtChangeMessageModifier messageModifier = new QtChangeMessageModifier();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = QtBenchmarkRepository.create(100, stagedChanges);
+        revWalk = new RevWalk(fixture.repo);
+
+        // the branch has moved on its own, so that merges and picks have real work to do
+        try (ObjectInserter ins = fixture.repo.newObjectInserter()) {
+            movedBranchHead = fixture.commit(ins, fixture.branchHead, "Direct push to branch", false);
+            ins.flush();
+        }
+
+        // the bottom half of the staging ref is integrating, the rest is staged
+        integrating = new HashMap<>();
+        staged = new HashMap<>();
+        for (int i = 0; i < fixture.changeIds.size(); i++) {
+            Change.Key key = new Change.Key(fixture.changeIds.get(i));
+            ChangeData cd = ChangeData.createForTest(PROJECT, new Change.Id(i + 1), 1);
+            (i < fixture.changeIds.size() / 2 ? integrating : staged).put(key, cd);
+        }
+
+        RevCommit top = revWalk.parseCommit(fixture.getStagingHead());
+        submitMessage = top.getFullMessage()
+            + "Reviewed-on: https://codereview.qt-project.org/c/benchmark/+/1234\n"
+            + "Tested-by: Qt Benchmark <benchmark@qt.io>\n"
+            + "Sanity-Review: Qt Sanity Bot <qt_sanitybot@qt-project.org>\n";
+
+        // the index is filled by the first walk, as on a server
+        indexFile = Files.createTempFile("qtcodereview-benchmark", ".idx");
+        Files.delete(indexFile);
+        index = QtChangeIdIndex.Table.open(indexFile);
+        QtUtil.listChangeKeys(revWalk, index, fixture.getStagingHead(), fixture.branchHead,
+                              new ArrayList<>(), new ArrayList<>());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        index.close();
+        Files.deleteIfExists(indexFile);
+        revWalk.close();
+        fixture.close();
+    }
+
+    /** Walk of staging-new-build and staging-approve, see QtUtil.listChangesNotMerged. */
+    @Benchmark
+    public int listChangesNotMerged() throws Exception {
+        List<RevCommit> commits = new ArrayList<>();
+        List<Change.Key> keys = new ArrayList<>();
+        QtUtil.listChangeKeys(revWalk, QtChangeIdIndex.PARSE, fixture.getStagingHead(), fixture.branchHead, commits, keys);
+        return keys.size();
+    }
+
+    /** The same walk with the Change-Ids looked up from the index. */
+    @Benchmark
+    public int listChangesNotMergedIndexed() throws Exception {
+        List<RevCommit> commits = new ArrayList<>();
+        List<Change.Key> keys = new ArrayList<>();
+        QtUtil.listChangeKeys(revWalk, index, fixture.getStagingHead(), fixture.branchHead, commits, keys);
+        return keys.size();
+    }
+
+    /** Planning of a staging rebuild, see QtUtil.rebuildStagingBranch. */
+    @Benchmark
+    public Object planStagingRebuild() throws Exception {
+        return QtStagingLayout.analyze(revWalk, QtChangeIdIndex.PARSE, fixture.getStagingHead(),
+                                       fixture.branchHead, integrating, staged, Integer.MAX_VALUE);
+    }
+
+    /** The same planning with the Change-Ids looked up from the index. */
+    @Benchmark
+    public Object planStagingRebuildIndexed() throws Exception {
+        return QtStagingLayout.analyze(revWalk, index, fixture.getStagingHead(),
+                                       fixture.branchHead, integrating, staged, Integer.MAX_VALUE);
+    }
+
+    /** Merge of the staging head into the moved branch, as done for merge commits. */
+    @Benchmark
+    public ObjectId merge() throws Exception {
+        try (ObjectInserter ins = fixture.repo.newObjectInserter();
+             ObjectReader reader = ins.newReader();
+             RevWalk rw = new RevWalk(reader)) {
+            RevCommit toMerge = rw.parseCommit(fixture.getStagingHead());
+            RevCommit mergeTip = rw.parseCommit(movedBranchHead);
+            return QtUtil.merge(QtBenchmarkRepository.IDENT, fixture.repo, ins, rw, toMerge, mergeTip, true);
+        }
+    }
+
+    /** Merge of a build into its branch as in staging-approve, which is a fast forward. */
+    @Benchmark
+    public ObjectId mergeFastForward() throws Exception {
+        try (ObjectInserter ins = fixture.repo.newObjectInserter();
+             ObjectReader reader = ins.newReader();
+             RevWalk rw = new RevWalk(reader)) {
+            RevCommit toMerge = rw.parseCommit(fixture.getStagingHead());
+            RevCommit mergeTip = rw.parseCommit(fixture.branchHead);
+            return QtUtil.merge(QtBenchmarkRepository.IDENT, fixture.repo, ins, rw, toMerge, mergeTip, false);
+        }
+    }
+
+    /**
+     * Cherry-pick of the top staged commit onto the moved branch. This is the
+     * three-way merge done by MergeUtil.createCherryPickFromCommit for
+     * QtCherryPickPatch, which needs a running server to be set up.
+     */
+    @Benchmark
+    public ObjectId cherryPick() throws Exception {
+        try (ObjectInserter ins = fixture.repo.newObjectInserter();
+             ObjectReader reader = ins.newReader();
+             RevWalk rw = new RevWalk(reader)) {
+            RevCommit source = rw.parseCommit(fixture.getStagingHead());
+            RevCommit base = rw.parseCommit(movedBranchHead);
+            ThreeWayMerger merger = (ThreeWayMerger) MergeStrategy.RESOLVE.newMerger(ins, fixture.repo.getConfig());
+            merger.setBase(source.getParent(0));
+            if (!merger.merge(base, source)) throw new IllegalStateException("conflict");
+
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(merger.getResultTreeId());
+            commit.setParentId(base);
+            commit.setAuthor(source.getAuthorIdent());
+            commit.setCommitter(QtBenchmarkRepository.IDENT);
+            commit.setMessage(messageModifier.onSubmit(source.getFullMessage(), source, base, BRANCH));
+            return ins.insert(commit);
+        }
+    }
+
+    /** Footer cleanup of a commit message when it is picked. */
+    @Benchmark
+    public String changeMessageOnSubmit() {
+        return messageModifier.onSubmit(submitMessage, null, null, BRANCH);
+    }
+}
@@ -44,18 +44,21 @@ public class QtAbandon extends RetryingRestModifyView<ChangeResource, AbandonInp
     private final ChangeJson.Factory json;
     private final PatchSetUtil psUtil;
     private final QtChangeUpdateOp.Factory qtUpdateFactory;
+    private final QtMetrics qtMetrics;
 
     @Inject
     QtAbandon(Provider<ReviewDb> dbProvider,
               ChangeJson.Factory json,
               RetryHelper retryHelper,
               PatchSetUtil psUtil,
-              QtChangeUpdateOp.Factory qtUpdateFactory) {
+              QtChangeUpdateOp.Factory qtUpdateFactory,
+              QtMetrics qtMetrics) {
         super(retryHelper);
         this.dbProvider = dbProvider;
         this.json = json;
         this.psUtil = psUtil;
         this.qtUpdateFactory = qtUpdateFactory;
+        this.qtMetrics = qtMetrics;
     }
 
     @Override
@@ -65,33 +68,36 @@ public class QtAbandon extends RetryingRestModifyView<ChangeResource, AbandonInp
                                    throws RestApiException, UpdateException,
                                           OrmException, PermissionBackendException,
                                           IOException {
-        Change change = rsrc.getChange();
-        logger.atInfo().log("qtcodereview: abandon %s", change);
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.ABANDON)) {
+            Change change = rsrc.getChange();
+            logger.atInfo().log("qtcodereview: abandon %s", change);
 
-        // Not allowed to abandon if the current patch set is locked.
-        psUtil.checkPatchSetNotLocked(rsrc.getNotes());
+            // Not allowed to abandon if the current patch set is locked.
+            psUtil.checkPatchSetNotLocked(rsrc.getNotes());
 
-        rsrc.permissions().database(dbProvider).check(ChangePermission.ABANDON);
+            rsrc.permissions().database(dbProvider).check(ChangePermission.ABANDON);
 
-        if (change.getStatus() != Change.Status.DEFERRED) {
-            logger.atSevere().log("qtcodereview: qtabandon: change %s status wrong %s", change, change.getStatus());
-            throw new ResourceConflictException("change is " + ChangeUtil.status(change));
-        }
+            if (change.getStatus() != Change.Status.DEFERRED) {
+                logger.atSevere().log("qtcodereview: qtabandon: change %s status wrong %s", change, change.getStatus());
+                throw new ResourceConflictException("change is " + ChangeUtil.status(change));
+            }
 
-        QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.ABANDONED,
-                                                     null,
-                                                     "Abandoned",
-                                                     input.message,
-                                                     ChangeMessagesUtil.TAG_ABANDON,
-                                                     null);
-        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), change.getProject(), rsrc.getUser(), TimeUtil.nowTs())) {
-            u.addOp(rsrc.getId(), op).execute();
-        }
+            QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.ABANDONED,
+                                                         null,
+                                                         "Abandoned",
+                                                         input.message,
+                                                         ChangeMessagesUtil.TAG_ABANDON,
+                                                         null);
+            try (BatchUpdate u =  updateFactory.create(dbProvider.get(), change.getProject(), rsrc.getUser(), TimeUtil.nowTs())) {
+                u.addOp(rsrc.getId(), op).execute();
+            }
 
-        logger.atInfo().log("qtcodereview: abandoned %s", change);
+            logger.atInfo().log("qtcodereview: abandoned %s", change);
 
-        change = op.getChange();
-        return json.noOptions().format(change);
+            change = op.getChange();
+            timer.succeeded();
+            return json.noOptions().format(change);
+        }
     }
 
     @Override
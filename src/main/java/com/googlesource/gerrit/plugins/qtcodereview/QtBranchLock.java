@@ -0,0 +1,76 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Serializes the operations that modify the staging ref of a branch, e.g.
+ * stage, unstage, new build, build approve and staging rebuild. Operations
+ * on different branches do not wait for each other, unless the branches
+ * happen to share a lock stripe. The locks are reentrant.
+ *
+ * The lock is only held within this server, it does not coordinate the
+ * servers of a cluster.
+ */
+@Singleton
+public class QtBranchLock {
+
+    private static final int STRIPES = 64;
+
+    private final Striped<Lock> locks = Striped.lock(STRIPES);
+    private final QtMetrics metrics;
+
+    @Inject
+    QtBranchLock(QtMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Locks a branch until the returned lock is closed.
+     * @param branch Branch, its staging ref or its short name.
+     */
+    public Held lock(Branch.NameKey branch) {
+        Lock lock = locks.get(getKey(branch));
+        long start = System.nanoTime();
+        lock.lock();
+        long acquired = System.nanoTime();
+        metrics.stagingLockWait.record(acquired - start, NANOSECONDS);
+        return new Held(lock, acquired);
+    }
+
+    private static String getKey(Branch.NameKey branch) {
+        String name = branch.get();
+        if (name.startsWith(QtUtil.R_HEADS)) {
+            name = name.substring(QtUtil.R_HEADS.length());
+        } else if (name.startsWith(QtUtil.R_STAGING)) {
+            name = name.substring(QtUtil.R_STAGING.length());
+        }
+        return branch.getParentKey().get() + ":" + name;
+    }
+
+    public class Held implements AutoCloseable {
+        private final Lock lock;
+        private final long acquired;
+
+        private Held(Lock lock, long acquired) {
+            this.lock = lock;
+            this.acquired = acquired;
+        }
+
+        @Override
+        public void close() {
+            lock.unlock();
+            metrics.stagingLockHold.record(System.nanoTime() - acquired, NANOSECONDS);
+        }
+    }
+}
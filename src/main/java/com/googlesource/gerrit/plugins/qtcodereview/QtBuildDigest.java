@@ -0,0 +1,115 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.errors.EmailException;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.StarredChangesUtil;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends the digest emails of a build: one email to each recipient, listing
+ * all the changes of the build the recipient would have been notified of.
+ * The recipients of all the changes are collected in one pass over the
+ * build: the owner, the reviewers and the voters of each change, and the
+ * users who starred it, unless they ignore the change.
+ */
+@Singleton
+public class QtBuildDigest {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final Provider<ReviewDb> dbProvider;
+    private final ChangeData.Factory changeDataFactory;
+    private final QtBuildDigestSender.Factory digestSenderFactory;
+
+    @Inject
+    QtBuildDigest(Provider<ReviewDb> dbProvider,
+                  ChangeData.Factory changeDataFactory,
+                  QtBuildDigestSender.Factory digestSenderFactory) {
+        this.dbProvider = dbProvider;
+        this.changeDataFactory = changeDataFactory;
+        this.digestSenderFactory = digestSenderFactory;
+    }
+
+    /**
+     * Sends the digest emails of a build.
+     * @param branch Destination branch of the build.
+     * @param build Name of the build.
+     * @param passed True if the changes were merged, false if they were rejected.
+     * @param changeIds Changes of the build, in build order.
+     * @param from User the emails are from.
+     * @param message Message of the build result, listed in failed build emails.
+     * @param delivered Recipients the digest has been sent to already, they
+     *        are skipped. Each recipient is added once its email is sent, so
+     *        that a retry only sends the failed ones.
+     * @throws EmailException Thrown if an email cannot be sent. The emails of
+     *         the other recipients are still sent.
+     */
+    public void send(Branch.NameKey branch, String build, boolean passed, List<Change.Id> changeIds,
+                     Account.Id from, String message, Set<Account.Id> delivered)
+                     throws OrmException, EmailException {
+        Map<Account.Id, List<Change>> recipients = new LinkedHashMap<>();
+        for (Change.Id changeId : changeIds) {
+            ChangeData cd = changeDataFactory.create(dbProvider.get(), branch.getParentKey(), changeId);
+            for (Account.Id accountId : getRecipients(cd)) {
+                if (delivered.contains(accountId)) continue;
+                recipients.computeIfAbsent(accountId, a -> new ArrayList<>()).add(cd.change());
+            }
+        }
+
+        EmailException failure = null;
+        for (Map.Entry<Account.Id, List<Change>> entry : recipients.entrySet()) {
+            try {
+                QtBuildDigestSender sender = digestSenderFactory.create(branch, build, passed, entry.getKey(),
+                                                                        entry.getValue(), message);
+                sender.setFrom(from);
+                sender.send();
+                delivered.add(entry.getKey());
+            } catch (EmailException e) {
+                logger.atWarning().log("qtcodereview: build %s digest not sent to %s: %s", build, entry.getKey(), e);
+                failure = e;
+            }
+        }
+        logger.atInfo().log("qtcodereview: build %s digest of %d changes sent to %d recipients",
+                            build, changeIds.size(), recipients.size());
+        if (failure != null) throw failure;
+    }
+
+    private static Set<Account.Id> getRecipients(ChangeData cd) throws OrmException {
+        Set<Account.Id> accounts = new LinkedHashSet<>();
+        accounts.add(cd.change().getOwner());
+        accounts.addAll(cd.reviewers().all());
+        for (PatchSetApproval approval : cd.currentApprovals()) {
+            accounts.add(approval.getAccountId());
+        }
+
+        ImmutableListMultimap<Account.Id, String> stars = cd.stars();
+        for (Map.Entry<Account.Id, String> star : stars.entries()) {
+            if (StarredChangesUtil.DEFAULT_LABEL.equals(star.getValue())) accounts.add(star.getKey());
+        }
+        for (Map.Entry<Account.Id, String> star : stars.entries()) {
+            if (StarredChangesUtil.IGNORE_LABEL.equals(star.getValue())) accounts.remove(star.getKey());
+        }
+        return accounts;
+    }
+}
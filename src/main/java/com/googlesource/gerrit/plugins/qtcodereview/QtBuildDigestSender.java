@@ -0,0 +1,96 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.common.errors.EmailException;
+import com.google.gerrit.extensions.api.changes.RecipientType;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.mail.send.EmailArguments;
+import com.google.gerrit.server.mail.send.OutgoingEmail;
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+
+import java.util.List;
+
+// Send one email of a build to one recipient, listing all the changes of the recipient in the build
+public class QtBuildDigestSender extends OutgoingEmail {
+    public interface Factory {
+        QtBuildDigestSender create(@Assisted("branch") Branch.NameKey branch,
+                                   @Assisted("build") String build,
+                                   boolean passed,
+                                   Account.Id recipient,
+                                   List<Change> changes,
+                                   @Assisted("message") String message);
+    }
+
+    private final Branch.NameKey branch;
+    private final String build;
+    private final boolean passed;
+    private final Account.Id recipient;
+    private final List<Change> changes;
+    private final String message;
+
+    @Inject
+    public QtBuildDigestSender(EmailArguments ea,
+                               @Assisted("branch") Branch.NameKey branch,
+                               @Assisted("build") String build,
+                               @Assisted boolean passed,
+                               @Assisted Account.Id recipient,
+                               @Assisted List<Change> changes,
+                               @Assisted("message") String message) {
+        super(ea, passed ? "merged" : "comment");
+        this.branch = branch;
+        this.build = build;
+        this.passed = passed;
+        this.recipient = recipient;
+        this.changes = changes;
+        this.message = message;
+    }
+
+    @Override
+    protected void init() throws EmailException {
+        super.init();
+
+        setHeader("Subject", String.format("[%s] Build %s for %s %s: %d %s",
+                                           branch.getParentKey().get(), build, branch.getShortName(),
+                                           passed ? "passed" : "failed", changes.size(),
+                                           changes.size() == 1 ? "change" : "changes"));
+        setHeader("X-Gerrit-Build", build);
+        add(RecipientType.TO, recipient);
+    }
+
+    @Override
+    protected void format() throws EmailException {
+        StringBuilder text = new StringBuilder();
+        if (passed) {
+            text.append(String.format("Build %s passed, these changes are merged into %s:\n\n",
+                                      build, branch.get()));
+        } else {
+            text.append(String.format("Build %s failed, these changes are moved back to new status for %s:\n\n",
+                                      build, branch.get()));
+        }
+
+        String url = Strings.nullToEmpty(getGerritUrl());
+        for (Change change : changes) {
+            text.append(String.format("  %sc/%s/+/%d  %s\n", url, change.getProject().get(),
+                                      change.getChangeId(), change.getSubject()));
+            text.append(String.format("    Change-Id: %s\n", change.getKey().get()));
+        }
+
+        if (!passed && !Strings.isNullOrEmpty(message)) {
+            text.append("\n").append(message);
+            if (!message.endsWith("\n")) text.append("\n");
+        }
+        appendText(text.toString());
+    }
+
+    @Override
+    protected boolean supportsHtml() {
+        return false;
+    }
+}
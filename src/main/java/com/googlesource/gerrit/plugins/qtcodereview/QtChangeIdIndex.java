@@ -0,0 +1,336 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.restapi.Url;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Index from commit to Change-Id, one per repository. The Change-Id of a
+ * commit never changes, so once a commit has been read by a staging walk its
+ * Change-Id is looked up from the index instead of parsing the commit body.
+ *
+ * Each index is an open addressing hash table in a memory-mapped file in the
+ * plugin data directory, so it survives restarts and is shared by all the
+ * operations on the repository. A slot holds the raw commit id and the
+ * Change-Id as 20 binary bytes; commits without a Change-Id are recorded too.
+ * Each slot has a checksum, a slot left half written by a crash is not used.
+ * The table is doubled in a new file when it is three quarters full. The index
+ * is only a cache: a file that cannot be used is recreated, and if that fails
+ * the commits are parsed as before.
+ */
+@Singleton
+public class QtChangeIdIndex implements LifecycleListener {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final String DIRECTORY = "changeids";
+    private static final String SUFFIX = ".idx";
+
+    /** Change-Id of a commit, from an index or from the commit itself. */
+    public interface Lookup {
+        /**
+         * Finds the Change-Id of a commit.
+         * @param revWalk RevWalk the commit was parsed with.
+         * @param commit Commit, the body does not need to be parsed.
+         * @return The Change-Id, or null if the commit has none.
+         * @throws IOException Thrown if the commit cannot be read.
+         */
+        String getChangeId(RevWalk revWalk, RevCommit commit) throws IOException;
+    }
+
+    /** Lookup that always parses the commit body. */
+    public static final Lookup PARSE = (revWalk, commit) -> {
+        revWalk.parseBody(commit);
+        return QtUtil.getChangeId(commit);
+    };
+
+    private final Path directory;
+    private final boolean enabled;
+    private final Map<Project.NameKey, Lookup> tables = new ConcurrentHashMap<>();
+
+    @Inject
+    QtChangeIdIndex(PluginConfigFactory cfgFactory,
+                    @PluginName String pluginName,
+                    @PluginData Path dataDir) {
+        this.directory = dataDir.resolve(DIRECTORY);
+        this.enabled = cfgFactory.getFromGerritConfig(pluginName).getBoolean("changeIdIndex", true);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        for (Lookup lookup : tables.values()) {
+            if (lookup instanceof Table) ((Table) lookup).close();
+        }
+        tables.clear();
+    }
+
+    /**
+     * Returns the lookup of a repository, the index is opened on first use.
+     * @param project Project of the repository.
+     * @return The index, or PARSE if the index is disabled or cannot be opened.
+     */
+    public Lookup get(Project.NameKey project) {
+        if (!enabled) return PARSE;
+        return tables.computeIfAbsent(project, p -> {
+            Path file = directory.resolve(Url.encode(p.get()) + SUFFIX);
+            try {
+                Files.createDirectories(directory);
+                return Table.open(file);
+            } catch (IOException e) {
+                logger.atSevere().withCause(e).log("qtcodereview: Change-Id index %s cannot be opened", file);
+                return PARSE;
+            }
+        });
+    }
+
+    /** Hash table of one repository in a memory-mapped file. */
+    static class Table implements Lookup {
+
+        private static final int MAGIC = 0x51544349; // "QTCI"
+        private static final int VERSION = 2;
+        static final int HEADER = 16;
+        static final int SLOT = 48;
+        static final int INITIAL_SLOTS = 1 << 16;
+        private static final int MAX_SLOTS = 1 << 25;
+
+        // slot layout: commit id, state, Change-Id without the leading I, checksum of the rest
+        private static final int STATE = Constants.OBJECT_ID_LENGTH;
+        private static final int CHANGE_ID = STATE + 1;
+        private static final int CHECKSUM = CHANGE_ID + Constants.OBJECT_ID_LENGTH;
+        private static final byte EMPTY = 0;
+        private static final byte HAS_CHANGE_ID = 1;
+        private static final byte NO_CHANGE_ID = 2;
+        private static final byte[] NO_ID = new byte[Constants.OBJECT_ID_LENGTH];
+
+        private final Path file;
+        private MappedByteBuffer buffer;
+        private int slots;
+        private int count;
+        private final byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        private final byte[] entry = new byte[CHECKSUM];
+        private final CRC32 crc = new CRC32();
+
+        private Table(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Opens an index file, a missing or unusable file is created anew.
+         * @param file The index file.
+         * @return The index.
+         * @throws IOException Thrown if the file cannot be created.
+         */
+        static Table open(Path file) throws IOException {
+            Table table = new Table(file);
+            if (Files.exists(file)) {
+                try {
+                    table.map(file);
+                    if (table.buffer.getInt(0) == MAGIC && table.buffer.getInt(4) == VERSION
+                        && Files.size(file) == HEADER + (long) table.slots * SLOT) {
+                        return table;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.atWarning().withCause(e).log("qtcodereview: Change-Id index %s is recreated", file);
+                }
+            }
+            table.buffer = create(file, INITIAL_SLOTS);
+            table.slots = INITIAL_SLOTS;
+            table.count = 0;
+            return table;
+        }
+
+        @Override
+        public String getChangeId(RevWalk revWalk, RevCommit commit) throws IOException {
+            synchronized (this) {
+                int slot = find(buffer, slots, commit);
+                byte state = buffer.get(slot + STATE);
+                if (state != EMPTY && isIntact(buffer, slot)) {
+                    if (state == HAS_CHANGE_ID) {
+                        buffer.position(slot + CHANGE_ID);
+                        buffer.get(id);
+                        return "I" + ObjectId.fromRaw(id).name();
+                    }
+                    if (state == NO_CHANGE_ID) return null;
+                }
+            }
+
+            String changeId = PARSE.getChangeId(revWalk, commit);
+            try {
+                add(commit, changeId);
+            } catch (IOException e) {
+                logger.atWarning().withCause(e).log("qtcodereview: Change-Id index %s cannot be grown", file);
+            }
+            return changeId;
+        }
+
+        private synchronized void add(AnyObjectId commit, String changeId) throws IOException {
+            ObjectId binaryId = toBinary(changeId);
+            // Change-Ids not in the usual I<sha1> form are parsed every time
+            if (changeId != null && binaryId == null) return;
+
+            int slot = find(buffer, slots, commit);
+            boolean empty = buffer.get(slot + STATE) == EMPTY;
+            // a slot left half written by a crash is written again
+            if (!empty && isIntact(buffer, slot)) return;
+            if (empty && (count + 1) * 4L > slots * 3L) {
+                if (slots >= MAX_SLOTS) return;
+                grow();
+                slot = find(buffer, slots, commit);
+            }
+            put(buffer, slot, commit, binaryId);
+            if (empty) buffer.putInt(12, ++count);
+        }
+
+        private static ObjectId toBinary(String changeId) {
+            if (changeId == null || changeId.length() != Constants.OBJECT_ID_STRING_LENGTH + 1
+                || changeId.charAt(0) != 'I' || !ObjectId.isId(changeId.substring(1))) {
+                return null;
+            }
+            ObjectId binaryId = ObjectId.fromString(changeId.substring(1));
+            // upper case hex would not be read back the same
+            return changeId.endsWith(binaryId.name()) ? binaryId : null;
+        }
+
+        /** Returns the slot of a commit, or the empty slot where it goes. */
+        private int find(MappedByteBuffer buf, int size, AnyObjectId commit) {
+            commit.copyRawTo(id, 0);
+            int mask = size - 1;
+            for (int i = commit.hashCode() & mask; ; i = (i + 1) & mask) {
+                int slot = HEADER + i * SLOT;
+                if (buf.get(slot + STATE) == EMPTY || isCommit(buf, slot)) return slot;
+            }
+        }
+
+        private boolean isCommit(MappedByteBuffer buf, int slot) {
+            for (int i = 0; i < id.length; i++) {
+                if (buf.get(slot + i) != id[i]) return false;
+            }
+            return true;
+        }
+
+        private void put(MappedByteBuffer buf, int slot, AnyObjectId commit, ObjectId changeId) {
+            // the file is not synced per slot, so a crash can leave any part of a
+            // slot unwritten; the checksum tells such a slot from a written one
+            buf.position(slot);
+            commit.copyRawTo(buf);
+            buf.put(changeId != null ? HAS_CHANGE_ID : NO_CHANGE_ID);
+            if (changeId != null) {
+                changeId.copyRawTo(buf);
+            } else {
+                buf.put(NO_ID);
+            }
+            buf.putInt(slot + CHECKSUM, checksum(buf, slot));
+        }
+
+        private boolean isIntact(MappedByteBuffer buf, int slot) {
+            return buf.getInt(slot + CHECKSUM) == checksum(buf, slot);
+        }
+
+        private int checksum(MappedByteBuffer buf, int slot) {
+            buf.position(slot);
+            buf.get(entry);
+            crc.reset();
+            crc.update(entry, 0, entry.length);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Rehashes the table into a new file twice the size, which then replaces
+         * the old one. The table is switched to the new file only once it is in
+         * place, until then the old one stays in use.
+         */
+        private void grow() throws IOException {
+            int newSlots = slots * 2;
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            MappedByteBuffer next = create(tmp, newSlots);
+
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            int newCount = 0;
+            for (int i = 0; i < slots; i++) {
+                int slot = HEADER + i * SLOT;
+                byte state = buffer.get(slot + STATE);
+                if (state == EMPTY || !isIntact(buffer, slot)) continue;
+                buffer.position(slot);
+                buffer.get(raw);
+                ObjectId commit = ObjectId.fromRaw(raw);
+                ObjectId changeId = null;
+                if (state == HAS_CHANGE_ID) {
+                    buffer.position(slot + CHANGE_ID);
+                    buffer.get(raw);
+                    changeId = ObjectId.fromRaw(raw);
+                }
+                put(next, find(next, newSlots, commit), commit, changeId);
+                newCount++;
+            }
+            next.putInt(12, newCount);
+            next.force();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            buffer = next;
+            slots = newSlots;
+            count = newCount;
+            logger.atInfo().log("qtcodereview: Change-Id index %s grown to %d slots", file, slots);
+        }
+
+        private static MappedByteBuffer create(Path path, int size) throws IOException {
+            Files.deleteIfExists(path);
+            MappedByteBuffer buf;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) size * SLOT);
+            }
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putInt(8, size);
+            buf.putInt(12, 0);
+            return buf;
+        }
+
+        private void map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (channel.size() < HEADER) throw new IOException("truncated file");
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            slots = buffer.getInt(8);
+            count = buffer.getInt(12);
+            if (slots <= 0 || slots > MAX_SLOTS || Integer.bitCount(slots) != 1) {
+                throw new IOException("invalid size " + slots);
+            }
+        }
+
+        synchronized void close() {
+            buffer.force();
+        }
+    }
+}
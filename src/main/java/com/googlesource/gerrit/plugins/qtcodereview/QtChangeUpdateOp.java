@@ -22,11 +22,15 @@ import com.google.gerrit.server.change.LabelNormalizer;
 import com.google.gerrit.server.notedb.ChangeUpdate;
 import com.google.gerrit.server.update.BatchUpdateOp;
 import com.google.gerrit.server.update.ChangeContext;
+import com.google.gerrit.server.update.Context;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class QtChangeUpdateOp implements BatchUpdateOp {
@@ -48,18 +52,23 @@ public class QtChangeUpdateOp implements BatchUpdateOp {
     private final String inputMessage;
     private final String tag;
     private CodeReviewCommit copyApprovalsFrom;
+    private Iterable<PatchSetApproval> approvals;
 
     private Change change;
     private PatchSetApproval submitter;
+    // status changes of the changes updated by this op, reported once they are saved
+    private final List<Map.Entry<Change, Change.Status>> transitions = new ArrayList<>();
 
     private final ChangeMessagesUtil cmUtil;
     private final ApprovalsUtil approvalsUtil;
     private final LabelNormalizer labelNormalizer;
+    private final QtStagingStats qtStagingStats;
 
     @Inject
     QtChangeUpdateOp(ChangeMessagesUtil cmUtil,
                      ApprovalsUtil approvalsUtil,
                      LabelNormalizer labelNormalizer,
+                     QtStagingStats qtStagingStats,
                      @Nullable @Assisted("newStatus") Change.Status newStatus,
                      @Nullable @Assisted("oldStatus") Change.Status oldStatus,
                      @Nullable @Assisted("defaultMessage") String defaultMessage,
@@ -69,6 +78,7 @@ public class QtChangeUpdateOp implements BatchUpdateOp {
         this.cmUtil = cmUtil;
         this.approvalsUtil = approvalsUtil;
         this.labelNormalizer = labelNormalizer;
+        this.qtStagingStats = qtStagingStats;
         this.newStatus = newStatus;
         this.oldStatus = oldStatus;
         this.defaultMessage = defaultMessage;
@@ -81,6 +91,15 @@ public class QtChangeUpdateOp implements BatchUpdateOp {
         return change;
     }
 
+    /**
+     * Sets the approvals of the patch set the approvals are copied from, so
+     * that they need not be read again while the change is updated.
+     */
+    public QtChangeUpdateOp setApprovals(Iterable<PatchSetApproval> approvals) {
+        this.approvals = approvals;
+        return this;
+    }
+
     @Override
     public boolean updateChange(ChangeContext ctx) throws OrmException, IOException, ResourceConflictException {
         boolean updated = false;
@@ -89,6 +108,7 @@ public class QtChangeUpdateOp implements BatchUpdateOp {
         ChangeUpdate update = ctx.getUpdate(psId);
 
         if (newStatus != null && (oldStatus == null || change.getStatus() == oldStatus)) {
+            transitions.add(new AbstractMap.SimpleEntry<>(change, change.getStatus()));
             change.setStatus(newStatus);
             update.fixStatus(newStatus);
             updated = true;
@@ -118,9 +138,21 @@ public class QtChangeUpdateOp implements BatchUpdateOp {
             updated = true;
         }
 
+        if (updated) {
+            QtTrace.count(QtTrace.Count.NOTEDB_WRITES, 1);
+        }
         return updated;
     }
 
+    @Override
+    public void postUpdate(Context ctx) {
+        // the op may be shared by many changes, the first call reports them all
+        for (Map.Entry<Change, Change.Status> transition : transitions) {
+            qtStagingStats.update(transition.getKey(), transition.getValue(), ctx.getWhen().getTime());
+        }
+        transitions.clear();
+    }
+
     private ChangeMessage newMessage(ChangeContext ctx) {
         StringBuilder msg = new StringBuilder();
         msg.append(defaultMessage);
@@ -135,11 +167,15 @@ public class QtChangeUpdateOp implements BatchUpdateOp {
                                            throws OrmException, IOException {
         PatchSet.Id psId = update.getPatchSetId();
         Map<PatchSetApproval.Key, PatchSetApproval> byKey = new HashMap<>();
-        for (PatchSetApproval psa : approvalsUtil.byPatchSet(ctx.getDb(),
-                                                             ctx.getNotes(),
-                                                             psId,
-                                                             ctx.getRevWalk(),
-                                                             ctx.getRepoView().getConfig())) {
+        Iterable<PatchSetApproval> current = approvals;
+        if (current == null) {
+            current = approvalsUtil.byPatchSet(ctx.getDb(),
+                                               ctx.getNotes(),
+                                               psId,
+                                               ctx.getRevWalk(),
+                                               ctx.getRepoView().getConfig());
+        }
+        for (PatchSetApproval psa : current) {
             byKey.put(psa.getKey(), psa);
         }
 
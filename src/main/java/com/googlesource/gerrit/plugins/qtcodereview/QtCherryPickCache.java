@@ -0,0 +1,85 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.Objects;
+
+/**
+ * Commits created by earlier cherry-picks, by project, source commit and
+ * base commit. The size is set with cache.gerrit-plugin-qt-workflow.cherry_picks.memoryLimit.
+ */
+@Singleton
+public class QtCherryPickCache {
+
+    static final String CACHE_NAME = "cherry_picks";
+
+    static Module module() {
+        return new CacheModule() {
+            @Override
+            protected void configure() {
+                cache(CACHE_NAME, Key.class, ObjectId.class).maximumWeight(4096);
+                bind(QtCherryPickCache.class);
+            }
+        };
+    }
+
+    static class Key {
+        private final Project.NameKey project;
+        private final ObjectId source;
+        private final ObjectId base;
+
+        Key(Project.NameKey project, ObjectId source, ObjectId base) {
+            this.project = project;
+            this.source = source.copy();
+            this.base = base.copy();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return project.equals(other.project) && source.equals(other.source) && base.equals(other.base);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, source, base);
+        }
+    }
+
+    private final Cache<Key, ObjectId> cache;
+
+    @Inject
+    QtCherryPickCache(@Named(CACHE_NAME) Cache<Key, ObjectId> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the commit of an earlier cherry-pick. The commit may not exist
+     * anymore, the caller must check it before use.
+     * @return Commit, or null if there is none.
+     */
+    ObjectId get(Project.NameKey project, ObjectId source, ObjectId base) {
+        return cache.getIfPresent(new Key(project, source, base));
+    }
+
+    void put(Project.NameKey project, ObjectId source, ObjectId base, ObjectId result) {
+        cache.put(new Key(project, source, base), result.copy());
+    }
+
+    void invalidate(Project.NameKey project, ObjectId source, ObjectId base) {
+        cache.invalidate(new Key(project, source, base));
+    }
+}
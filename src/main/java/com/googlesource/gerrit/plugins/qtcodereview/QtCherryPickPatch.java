@@ -9,19 +9,17 @@ import com.google.gerrit.extensions.restapi.BadRequestException;
 import com.google.gerrit.extensions.restapi.MergeConflictException;
 import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.CodeReviewCommit;
 import com.google.gerrit.server.git.CodeReviewCommit.CodeReviewRevWalk;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergeUtil;
-import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.NoSuchRefException;
-import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.submit.IntegrationException;
 import com.google.gerrit.server.submit.MergeIdenticalTreeException;
@@ -32,13 +30,12 @@ import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import java.sql.Timestamp;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
-import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -50,31 +47,38 @@ public class QtCherryPickPatch {
 
     private final Provider<ReviewDb> dbProvider;
     private final BatchUpdate.Factory batchUpdateFactory;
-    private final GitRepositoryManager gitManager;
-    private final Provider<IdentifiedUser> user;
-    private final MergeUtil.Factory mergeUtilFactory;
-    private final ProjectCache projectCache;
     private final QtChangeUpdateOp.Factory qtUpdateFactory;
+    private final QtCherryPickCache cherryPickCache;
+    private final QtMetrics qtMetrics;
+    private final boolean deterministicCommitter;
 
     @Inject
     QtCherryPickPatch(Provider<ReviewDb> dbProvider,
                       BatchUpdate.Factory batchUpdateFactory,
-                      GitRepositoryManager gitManager,
-                      Provider<IdentifiedUser> user,
-                      MergeUtil.Factory mergeUtilFactory,
-                      ProjectCache projectCache,
-                      QtChangeUpdateOp.Factory qtUpdateFactory) {
+                      QtChangeUpdateOp.Factory qtUpdateFactory,
+                      QtCherryPickCache cherryPickCache,
+                      QtMetrics qtMetrics,
+                      PluginConfigFactory cfgFactory,
+                      @PluginName String pluginName) {
         this.dbProvider = dbProvider;
         this.batchUpdateFactory = batchUpdateFactory;
-        this.gitManager = gitManager;
-        this.user = user;
-        this.mergeUtilFactory = mergeUtilFactory;
-        this.projectCache = projectCache;
         this.qtUpdateFactory = qtUpdateFactory;
+        this.cherryPickCache = cherryPickCache;
+        this.qtMetrics = qtMetrics;
+        this.deterministicCommitter = cfgFactory.getFromGerritConfig(pluginName)
+                                                .getBoolean("deterministicCherryPick", false);
     }
 
-    public CodeReviewCommit cherryPickPatch(ChangeData changeData,
-                                            Project.NameKey project,
+    /**
+     * Cherry-picks a patch set on top of a commit and updates the change.
+     * The new commit is created with the inserter of the session and it is
+     * not flushed, the caller must flush the session before pointing any ref
+     * to it. The change is only updated if there is a status or a message to
+     * record.
+     */
+    public CodeReviewCommit cherryPickPatch(QtGitSession session,
+                                            IdentifiedUser identifiedUser,
+                                            ChangeData changeData,
                                             ObjectId sourceId,
                                             ObjectId destId,
                                             boolean allowFastForward,
@@ -84,36 +88,66 @@ public class QtCherryPickPatch {
                                             String tag)
                                             throws IntegrationException {
 
-        IdentifiedUser identifiedUser = user.get();
-        try (Repository git = gitManager.openRepository(project);
-             ObjectInserter oi = git.newObjectInserter();
-             ObjectReader reader = oi.newReader();
-             CodeReviewRevWalk revWalk = CodeReviewCommit.newRevWalk(reader)) {
+        CodeReviewCommit cherryPickCommit = pickPatch(session, changeData, sourceId, destId, allowFastForward);
+        if (newStatus == null && defaultMessage == null) return cherryPickCommit;
 
-            if (!git.hasObject(sourceId)) throw new NoSuchRefException("Invalid source objectId: " + sourceId);
-            if (!git.hasObject(destId)) throw new NoSuchRefException("Invalid destination objectid: " + destId);
+        try (BatchUpdate bu = batchUpdateFactory.create(dbProvider.get(), session.getProject(),
+                                                        identifiedUser, TimeUtil.nowTs())) {
+            bu.addOp(changeData.getId(), qtUpdateFactory.create(newStatus,
+                                                                null,
+                                                                defaultMessage,
+                                                                inputMessage,
+                                                                tag,
+                                                                null));
+            bu.execute();
+            logger.atInfo().log("qtcodereview: cherrypick done %s", changeData.getId());
+            return cherryPickCommit;
+        } catch (Exception e) {
+            throw new IntegrationException("Reason: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cherry-picks a patch set on top of a commit without touching the change.
+     * Used when many changes are picked in a row, the caller updates the
+     * changes afterwards in one batch if needed.
+     */
+    public CodeReviewCommit pickPatch(QtGitSession session,
+                                      ChangeData changeData,
+                                      ObjectId sourceId,
+                                      ObjectId destId,
+                                      boolean allowFastForward)
+                                      throws IntegrationException {
+
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.CHERRY_PICK)) {
+            Repository git = session.getRepository();
+            ObjectInserter oi = session.getInserter();
+            CodeReviewRevWalk revWalk = session.getRevWalk();
+
+            // the session reader also sees the objects not flushed yet
+            if (!session.getReader().has(sourceId)) throw new NoSuchRefException("Invalid source objectId: " + sourceId);
+            if (!session.getReader().has(destId)) throw new NoSuchRefException("Invalid destination objectid: " + destId);
 
             RevCommit baseCommit = revWalk.parseCommit(destId);
             CodeReviewCommit commitToCherryPick = revWalk.parseCommit(sourceId);
+            // the shared walk may have released the message of the commit
+            revWalk.parseBody(commitToCherryPick);
 
             List parents = Arrays.asList(commitToCherryPick.getParents());
             if (allowFastForward == true && parents.contains(baseCommit) && commitToCherryPick.getParentCount() < 2) {
                 logger.atInfo().log("qtcodereview: cherrypick fast forward %s on top of %s", sourceId, destId);
+                timer.succeeded();
                 return commitToCherryPick;
             }
 
-            // Copy the committer, but change the date to now.
-            PersonIdent committerIdent = new PersonIdent(commitToCherryPick.getCommitterIdent(), new Date());
+            PersonIdent committerIdent = newCommitterIdent(commitToCherryPick, baseCommit);
 
             commitToCherryPick.setPatchsetId(changeData.currentPatchSet().getId());
             commitToCherryPick.setNotes(changeData.notes());
 
             CodeReviewCommit cherryPickCommit;
 
-            ProjectState projectState = projectCache.checkedGet(project);
-            if (projectState == null) throw new NoSuchProjectException(project);
-
-            MergeUtil mergeUtil = mergeUtilFactory.create(projectState, true);
+            MergeUtil mergeUtil = session.getMergeUtil();
             if (commitToCherryPick.getParentCount() > 1) {
                 // Merge commit cannot be cherrypicked
                 logger.atInfo().log("qtcodereview: merge commit detected %s", commitToCherryPick);
@@ -123,49 +157,111 @@ public class QtCherryPickPatch {
                     logger.atInfo().log("qtcodereview: merge commit fast forwarded");
                     cherryPickCommit = commitToCherryPick;
                 } else {
-                    logger.atInfo().log("qtcodereview: merge of merge created");
-                    RevCommit commit = QtUtil.merge(committerIdent,
-                                                    git, oi,
-                                                    revWalk,
-                                                    commitToCherryPick,
-                                                    baseCommit,
-                                                    true);
-                    cherryPickCommit = revWalk.parseCommit(commit);
+                    cherryPickCommit = getCachedPick(session, commitToCherryPick, baseCommit, null);
+                    if (cherryPickCommit == null) {
+                        logger.atInfo().log("qtcodereview: merge of merge created");
+                        RevCommit commit;
+                        try (QtMetrics.OperationTimer mergeTimer = qtMetrics.start(QtMetrics.Operation.MERGE)) {
+                            commit = QtUtil.merge(committerIdent,
+                                                  git, oi,
+                                                  revWalk,
+                                                  commitToCherryPick,
+                                                  baseCommit,
+                                                  true);
+                            mergeTimer.succeeded();
+                        }
+                        cherryPickCommit = revWalk.parseCommit(commit);
+                        putCachedPick(session, commitToCherryPick, baseCommit, cherryPickCommit);
+                    }
                 }
             } else {
                 String commitMessage = mergeUtil.createCommitMessageOnSubmit(commitToCherryPick, baseCommit);
-                cherryPickCommit = mergeUtil.createCherryPickFromCommit(oi,
-                                                                        git.getConfig(),
-                                                                        baseCommit,
-                                                                        commitToCherryPick,
-                                                                        committerIdent,
-                                                                        commitMessage,
-                                                                        revWalk,
-                                                                        0,
-                                                                        true,   // ignoreIdenticalTree
-                                                                        false); // allowConflicts
+                cherryPickCommit = getCachedPick(session, commitToCherryPick, baseCommit, commitMessage);
+                if (cherryPickCommit == null) {
+                    QtTrace.count(QtTrace.Count.TREES_MERGED, 1);
+                    cherryPickCommit = mergeUtil.createCherryPickFromCommit(oi,
+                                                                            git.getConfig(),
+                                                                            baseCommit,
+                                                                            commitToCherryPick,
+                                                                            committerIdent,
+                                                                            commitMessage,
+                                                                            revWalk,
+                                                                            0,
+                                                                            true,   // ignoreIdenticalTree
+                                                                            false); // allowConflicts
+                    putCachedPick(session, commitToCherryPick, baseCommit, cherryPickCommit);
+                }
             }
 
+            QtTrace.detail("picked %s of change %s as %s", commitToCherryPick.name(), changeData.getId(),
+                           cherryPickCommit.name());
             boolean patchSetNotChanged = cherryPickCommit.equals(commitToCherryPick);
             if (!patchSetNotChanged) {
                 logger.atInfo().log("qtcodereview: %s cherrypicked as %s", commitToCherryPick, cherryPickCommit);
-                oi.flush();
             }
-            Timestamp commitTimestamp = new Timestamp(committerIdent.getWhen().getTime());
-            BatchUpdate bu = batchUpdateFactory.create(dbProvider.get(), project, identifiedUser, commitTimestamp);
-            bu.addOp(changeData.getId(), qtUpdateFactory.create(newStatus,
-                                                                null,
-                                                                defaultMessage,
-                                                                inputMessage,
-                                                                tag,
-                                                                null));
-
-            bu.execute();
-            logger.atInfo().log("qtcodereview: cherrypick done %s", changeData.getId());
+            timer.succeeded();
             return cherryPickCommit;
+        } catch (MergeConflictException e) {
+            qtMetrics.conflicts.increment(QtMetrics.Operation.CHERRY_PICK);
+            throw new IntegrationException("Reason: " + e.getMessage());
+        } catch (QtUtil.MergeConflictException e) {
+            qtMetrics.conflicts.increment(QtMetrics.Operation.MERGE);
+            throw new IntegrationException("Reason: " + e.getMessage());
         } catch (Exception e) {
             throw new IntegrationException("Reason: " + e.getMessage());
         }
     }
 
+    /**
+     * Committer of a cherry-pick. By default this is the committer of the
+     * source commit with the current time. In deterministic mode the time is
+     * the later of the source and base commit times, so that picking the
+     * same commit on the same base always gives the same commit.
+     */
+    private PersonIdent newCommitterIdent(RevCommit source, RevCommit base) {
+        PersonIdent committer = source.getCommitterIdent();
+        if (!deterministicCommitter) return new PersonIdent(committer, new Date());
+
+        long when = Math.max(committer.getWhen().getTime(), base.getCommitTime() * 1000L);
+        return new PersonIdent(committer, new Date(when));
+    }
+
+    /**
+     * Finds the result of an earlier pick of the same commit on the same base.
+     * Results are only reused in deterministic mode, where they are identical
+     * to a new pick. A cached commit is dropped if it has been pruned, or if
+     * the message of a new pick would differ, e.g. because of new approvals.
+     * @param commitMessage Expected message, or null for a merge.
+     */
+    private CodeReviewCommit getCachedPick(QtGitSession session,
+                                           RevCommit source,
+                                           RevCommit base,
+                                           String commitMessage)
+                                           throws IOException {
+        if (!deterministicCommitter) return null;
+
+        ObjectId cached = cherryPickCache.get(session.getProject(), source, base);
+        if (cached == null) return null;
+
+        if (session.getReader().has(cached)) {
+            CodeReviewRevWalk revWalk = session.getRevWalk();
+            CodeReviewCommit commit = revWalk.parseCommit(cached);
+            revWalk.parseBody(commit);
+            boolean matches = commitMessage == null
+                ? commit.getParentCount() == 2 && commit.getParent(1).equals(source)
+                : commit.getParentCount() == 1 && commitMessage.equals(commit.getFullMessage());
+            if (matches && commit.getParent(0).equals(base)) {
+                logger.atInfo().log("qtcodereview: %s on top of %s reused as %s", source, base, commit);
+                return commit;
+            }
+        }
+
+        cherryPickCache.invalidate(session.getProject(), source, base);
+        return null;
+    }
+
+    private void putCachedPick(QtGitSession session, RevCommit source, RevCommit base, RevCommit result) {
+        if (deterministicCommitter) cherryPickCache.put(session.getProject(), source, base, result);
+    }
+
 }
@@ -13,16 +13,14 @@ import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeMessagesUtil;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.change.PatchSetInserter;
-import com.google.gerrit.server.extensions.events.ChangeMerged;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.CodeReviewCommit;
-import com.google.gerrit.server.git.GitRepositoryManager;
-import com.google.gerrit.server.mail.send.MergedSender;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
@@ -31,6 +29,7 @@ import com.google.gerrit.server.permissions.RefPermission;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.NoSuchRefException;
 import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.submit.IntegrationException;
 import com.google.gerrit.server.update.BatchUpdate;
 import com.google.gerrit.server.update.UpdateException;
 import com.google.gerrit.server.util.time.TimeUtil;
@@ -47,6 +46,7 @@ import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -55,9 +55,10 @@ import org.kohsuke.args4j.Option;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
@@ -69,6 +70,15 @@ import java.util.Map;
  * the build are marked as merged. When a build receives fail status, all
  * change in the build are marked as new and they need to be staged again.
  *
+ * With the bisect option a failed build is split into two builds instead,
+ * both on top of the destination branch, and its changes stay integrating.
+ * Once one half is merged, the other one is rebased when it passes and has
+ * to be built again, so that only tested commits are merged.
+ *
+ * A speculative build, with the first changes of a build, can only pass. Its
+ * changes are merged, the other changes of the build are moved back to
+ * staged and the build and its other speculative builds are removed.
+ *
  * For example, how to approve a build
  * $ ssh -p 29418 localhost gerrit-plugin-qt-workflow staging-approve -p project -b master -i 123 -r=pass
  */
@@ -79,16 +89,13 @@ class QtCommandBuildApprove extends SshCommand {
     private PermissionBackend permissionBackend;
 
     @Inject
-    private GitRepositoryManager gitManager;
+    private QtGitSession.Factory qtGitSessionFactory;
 
     @Inject
-    private Provider<ReviewDb> dbProvider;
+    private QtBranchLock qtBranchLock;
 
     @Inject
-    private MergedSender.Factory mergedSenderFactory;
-
-    @Inject
-    QtBuildFailedSender.Factory qtBuildFailedSenderFactory;
+    private Provider<ReviewDb> dbProvider;
 
     @Inject
     private BatchUpdate.Factory updateFactory;
@@ -100,14 +107,23 @@ class QtCommandBuildApprove extends SshCommand {
     private GitReferenceUpdated referenceUpdated;
 
     @Inject
-    private ChangeMerged changeMerged;
+    private QtNotificationOutbox qtNotificationOutbox;
 
     @Inject
     private QtUtil qtUtil;
 
+    @Inject
+    private QtRebuildScheduler qtRebuildScheduler;
+
     @Inject
     private QtChangeUpdateOp.Factory qtUpdateFactory;
 
+    @Inject
+    private QtCherryPickPatch qtCherryPickPatch;
+
+    @Inject
+    private QtMetrics qtMetrics;
+
     @Option(name = "--project", aliases = {"-p"},
         required = true, usage = "project name")
     private String project;
@@ -128,8 +144,18 @@ class QtCommandBuildApprove extends SshCommand {
         required = true, usage = "destination branch, e.g. refs/heads/master or just master")
     private String destBranch;
 
+    @Option(name = "--bisect",
+        usage = "on fail, split the build into builds <build-id>/a and <build-id>/b instead of rejecting all the changes")
+    private boolean bisect;
+
+    @Option(name = "--trace",
+        usage = "log a detailed trace of the command, the trace id is printed to stderr")
+    private boolean trace;
+
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+    private QtBranchLock.Held branchLock;
+    private QtGitSession session;
     private Repository git;
 
     /** Parameter value for pass result.  */
@@ -144,6 +170,7 @@ class QtCommandBuildApprove extends SshCommand {
     private Branch.NameKey destBranchKey;
     private Branch.NameKey stagingBranchKey;
     private Branch.NameKey destBranchShortKey;
+    private Branch.NameKey speculativeBase;
 
     private List<Entry<ChangeData,RevCommit>> affectedChanges = null;
 
@@ -160,8 +187,12 @@ class QtCommandBuildApprove extends SshCommand {
         stagingBranchKey = QtUtil.getNameKeyLong(project, QtUtil.R_STAGING, destBranch);
         destBranchShortKey =  QtUtil.getNameKeyShort(project, QtUtil.R_HEADS, destBranch);
 
+        QtTrace commandTrace = QtTrace.open("staging-approve " + project + " " + buildBranch, trace);
+        if (trace) stderr.println("trace: " + commandTrace.getId());
         try {
-            git = gitManager.openRepository(projectKey);
+            branchLock = qtBranchLock.lock(destBranchKey);
+            session = qtGitSessionFactory.open(projectKey);
+            git = session.getRepository();
 
             // Check required permissions
             permissionBackend.user(user).project(projectKey).ref(destBranchKey.get()).check(RefPermission.UPDATE);
@@ -172,7 +203,7 @@ class QtCommandBuildApprove extends SshCommand {
             if (git.resolve(buildBranchKey.get()) == null) throw die("build not found");
 
             // Initialize and populate open changes list.
-            affectedChanges = qtUtil.listChangesNotMerged(git, buildBranchKey, destBranchKey);
+            affectedChanges = qtUtil.listChangesNotMerged(session, buildBranchKey, destBranchKey);
 
             // Notify user that build did not have any open changes. The build has already been approved.
             if (affectedChanges.isEmpty()) {
@@ -181,14 +212,32 @@ class QtCommandBuildApprove extends SshCommand {
                 throw die("No open changes in the build branch");
             }
 
+            speculativeBase = QtUtil.getSpeculativeBuildBase(git, buildBranchKey);
+            if (speculativeBase != null && !QtUtil.branchExists(git, speculativeBase)) speculativeBase = null;
+
             if (result.toLowerCase().equals(PASS)) {
-                approveBuildChanges();
+                qtMetrics.buildChanges.record(affectedChanges.size());
+                try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.APPROVE_PASS)) {
+                    boolean approved = approveBuildChanges();
+                    if (approved && speculativeBase != null) releaseSpeculativeBuild();
+                    if (approved) timer.succeeded();
+                }
             } else if (result.toLowerCase().equals(FAIL)) {
-                rejectBuildChanges();
+                if (speculativeBase != null) {
+                    throw die("speculative build cannot fail, report the result of build " + speculativeBase.get());
+                }
+                qtMetrics.buildChanges.record(affectedChanges.size());
+                try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.APPROVE_FAIL)) {
+                    if (!bisect || !bisectBuildChanges()) rejectBuildChanges();
+                    timer.succeeded();
+                }
             } else {
                 throw die("result argument accepts only value pass or fail.");
             }
 
+            // the speculative builds are not needed once the build has a result
+            if (speculativeBase == null) discardSpeculativeBuilds(buildBranchKey, null);
+
         } catch (AuthException e) {
             throw die("not authorized");
         } catch (PermissionBackendException e) {
@@ -210,24 +259,41 @@ class QtCommandBuildApprove extends SshCommand {
             String msg = String.format("Merge build %s to branch %s failed", buildBranch, destBranchKey);
             logger.atSevere().log("qtcodereview: %s", msg);
             throw die(String.format("Merge conflict! build branch %s into %s failed", buildBranch, destBranch));
+        } catch (QtUtil.StagingLimitException e) {
+            logger.atSevere().log("qtcodereview: staging-approve staging ref rebuild failed for %s: %s",
+                                  stagingBranchKey, e.getMessage());
+            throw die("staging rebuild failed, staging ref limit exceeded: " + e.getMessage());
         } finally {
-            if (git != null) git.close();
+            commandTrace.close();
+            if (session != null) session.close();
+            if (branchLock != null) branchLock.close();
         }
     }
 
-    private void approveBuildChanges() throws QtUtil.MergeConflictException, NoSuchRefException,
+    private boolean approveBuildChanges() throws UnloggedFailure, QtUtil.MergeConflictException,
+                                              QtUtil.StagingLimitException, NoSuchRefException,
                                               IOException, UpdateException, RestApiException,
                                               OrmException, ConfigInvalidException {
         if (message == null) message = String.format("Change merged into branch %s", destBranchKey);
 
         ObjectId oldId = git.resolve(destBranchKey.get());
-
-        Result result = QtUtil.mergeBranches(user.asIdentifiedUser(), git, buildBranchKey, destBranchKey);
+        ObjectId buildId = git.resolve(buildBranchKey.get());
+
+        // the build was tested on top of the branch, it can only be fast forwarded.
+        // A half of a bisected build is behind the branch once the other half is
+        // merged, it is rebased and has to be built again.
+        Result result = null;
+        if (QtUtil.isAncestor(session, oldId, buildId)) {
+            result = qtUtil.mergeBranches(user.asIdentifiedUser(), session, buildBranchKey, destBranchKey);
+        } else if (QtUtil.isBisectBuild(git, buildBranchKey)) {
+            rebaseBisectBuild(oldId, buildId);
+            return false;
+        }
 
         if (result != Result.FAST_FORWARD) {
             message = "Branch update failed, changed back to NEW. Either the destination branch was changed externally, or this is an issue in the Qt plugin.";
             rejectBuildChanges();
-            return;
+            return false;
         }
 
         updateChanges(affectedChanges, Change.Status.MERGED, null,
@@ -240,24 +306,263 @@ class QtCommandBuildApprove extends SshCommand {
         // send ref updated event only if there are changes to build
         if (!newId.equals(oldId)) {
             referenceUpdated.fire(projectKey, destBranchKey.get(), oldId, newId, user.asIdentifiedUser().state());
+            QtTrace.detail("ref-updated %s %s -> %s", destBranchKey.get(), oldId.name(), newId.name());
         }
+
+        // the staging ref must be rebuilt if it is not on top of the branch anymore,
+        // which happens when the halves of a bisected build are merged
+        ObjectId stagingId = git.resolve(stagingBranchKey.get());
+        if (stagingId != null && !QtUtil.isAncestor(session, newId, stagingId)) {
+            try {
+                if (!qtRebuildScheduler.schedule(destBranchKey, user.asIdentifiedUser())) {
+                    qtUtil.rebuildStagingBranch(session, user.asIdentifiedUser(), stagingBranchKey, destBranchShortKey);
+                }
+            } catch (QtUtil.MergeConflictException | QtUtil.StagingLimitException e) {
+                // the build is merged already, the staging ref can be rebuilt later
+                logger.atSevere().log("qtcodereview: staging-approve staging ref rebuild failed for %s: %s",
+                                      stagingBranchKey, e.getMessage());
+            }
+        }
+        return true;
     }
 
-    private void rejectBuildChanges() throws QtUtil.MergeConflictException, UpdateException,
-                                             RestApiException, OrmException, IOException,
-                                             ConfigInvalidException {
+    /**
+     * Moves the changes of the build that were not in the passed speculative
+     * build back to staged, and removes the build and its other speculative
+     * builds. The changes are still in the staging ref in the same order, so
+     * the next build takes them in again.
+     */
+    private void releaseSpeculativeBuild() throws UpdateException, RestApiException, OrmException,
+                                                  IOException, QtUtil.BranchNotFoundException {
+        List<Entry<ChangeData,RevCommit>> remaining = qtUtil.listChangesNotMerged(session, speculativeBase,
+                                                                                  destBranchKey);
+        String releaseMessage = String.format("Speculative build %s passed without this change, change moved back to staging",
+                                              buildBranch);
+        QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.STAGED, Change.Status.INTEGRATING,
+                                                     releaseMessage, null, QtUtil.TAG_CI, null);
+        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
+            for (Entry<ChangeData,RevCommit> item : remaining) {
+                Change change = item.getKey().change();
+                if (change.getStatus() == Change.Status.INTEGRATING) u.addOp(change.getId(), op);
+            }
+            u.execute();
+        }
+
+        discardSpeculativeBuilds(speculativeBase, buildBranchKey);
+        qtUtil.deleteBuildRef(git, user.asIdentifiedUser(), projectKey, speculativeBase);
+
+        logger.atInfo().log("qtcodereview: staging-approve speculative build %s passed, %d changes of build %s moved back to staging",
+                            buildBranch, remaining.size(), speculativeBase);
+    }
+
+    private void discardSpeculativeBuilds(Branch.NameKey build, Branch.NameKey keep) throws IOException {
+        for (Branch.NameKey speculativeKey : QtUtil.listSpeculativeBuilds(git, build)) {
+            if (!speculativeKey.equals(keep)) {
+                qtUtil.deleteBuildRef(git, user.asIdentifiedUser(), projectKey, speculativeKey);
+            }
+        }
+    }
+
+    private void rejectBuildChanges() throws QtUtil.MergeConflictException, QtUtil.StagingLimitException,
+                                             UpdateException, RestApiException, OrmException,
+                                             IOException, ConfigInvalidException {
         if (message == null) message = String.format("Change rejected for branch %s", destBranchKey);
 
         updateChanges(affectedChanges, Change.Status.NEW, Change.Status.INTEGRATING,
                       message, ChangeMessagesUtil.TAG_REVERT, false);
 
         // need to rebuild the staging ref because the reject changes need to be removed from there
-        qtUtil.rebuildStagingBranch(git, user.asIdentifiedUser(), projectKey, stagingBranchKey, destBranchShortKey);
+        if (!qtRebuildScheduler.schedule(destBranchKey, user.asIdentifiedUser())) {
+            qtUtil.rebuildStagingBranch(session, user.asIdentifiedUser(), stagingBranchKey, destBranchShortKey);
+        }
 
         logger.atInfo().log("qtcodereview: staging-approve build %s rejected for branch %s",
                             buildBranch, destBranchKey);
     }
 
+    /**
+     * Splits the failed build into two builds, each of them on top of the
+     * destination branch, and removes the failed build ref. The changes stay
+     * integrating until the new builds are approved or rejected.
+     * @return False if the build cannot be bisected, e.g. it has only one
+     *         change, the halves cannot be picked on their own or their
+     *         refs cannot be created. The build is then rejected as usual.
+     */
+    private boolean bisectBuildChanges() throws UnloggedFailure, UpdateException, RestApiException,
+                                                OrmException, IOException, AuthException,
+                                                PermissionBackendException {
+        // in build order, bottom first
+        List<ChangeData> changes = new ArrayList<>();
+        for (Entry<ChangeData,RevCommit> item : affectedChanges) {
+            if (item.getKey().change().getStatus() == Change.Status.INTEGRATING) changes.add(item.getKey());
+        }
+        Collections.reverse(changes);
+
+        if (changes.size() < 2) {
+            logger.atInfo().log("qtcodereview: staging-approve build %s has %d changes, not bisected",
+                                buildBranch, changes.size());
+            return false;
+        }
+
+        Branch.NameKey[] halfKeys = QtUtil.getBisectBuilds(buildBranchKey);
+        for (Branch.NameKey halfKey : halfKeys) {
+            permissionBackend.user(user).project(projectKey).ref(halfKey.get()).check(RefPermission.CREATE);
+            if (QtUtil.branchExists(git, halfKey)) throw die("bisect build " + halfKey.get() + " already exists");
+        }
+
+        int middle = changes.size() / 2;
+        List<List<ChangeData>> halves = Arrays.asList(changes.subList(0, middle),
+                                                      changes.subList(middle, changes.size()));
+
+        ObjectId destId = git.resolve(destBranchKey.get());
+        ObjectId[] halfHeads = new ObjectId[halves.size()];
+        try {
+            for (int i = 0; i < halves.size(); i++) {
+                halfHeads[i] = destId;
+                for (ChangeData cd : halves.get(i)) {
+                    ObjectId srcId = ObjectId.fromString(cd.currentPatchSet().getRevision().get());
+                    halfHeads[i] = qtCherryPickPatch.pickPatch(session, cd, srcId, halfHeads[i], false).toObjectId();
+                }
+            }
+        } catch (IntegrationException e) {
+            logger.atWarning().log("qtcodereview: staging-approve build %s cannot be bisected: %s",
+                                   buildBranch, e.getMessage());
+            return false;
+        }
+        session.flush();
+
+        // the halves are stored under the failed build, so it has to go first
+        ObjectId buildId = git.resolve(buildBranchKey.get());
+        boolean bisectBuild = QtUtil.isBisectBuild(git, buildBranchKey);
+        qtUtil.deleteBuildRef(git, user.asIdentifiedUser(), projectKey, buildBranchKey);
+        if (!createBisectBuilds(halfKeys, halfHeads)) {
+            restoreBisectedBuild(halfKeys, buildId, bisectBuild);
+            return false;
+        }
+
+        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
+            for (int i = 0; i < halves.size(); i++) {
+                String bisectMessage = String.format("Build %s failed, change moved to build %s for bisecting",
+                                                     buildBranch, halfKeys[i].getShortName());
+                QtChangeUpdateOp op = qtUpdateFactory.create(null, Change.Status.INTEGRATING, bisectMessage,
+                                                             message, QtUtil.TAG_CI, null);
+                for (ChangeData cd : halves.get(i)) {
+                    u.addOp(cd.getId(), op);
+                }
+            }
+            u.execute();
+        }
+
+        for (Branch.NameKey halfKey : halfKeys) {
+            stdout.println(halfKey.get());
+        }
+        logger.atInfo().log("qtcodereview: staging-approve build %s bisected into %s and %s",
+                            buildBranch, halfKeys[0], halfKeys[1]);
+        return true;
+    }
+
+    private boolean createBisectBuilds(Branch.NameKey[] halfKeys, ObjectId[] halfHeads) throws IOException {
+        for (int i = 0; i < halfKeys.length; i++) {
+            Result result = qtUtil.createBuildRef(git, user.asIdentifiedUser(), projectKey, halfHeads[i], halfKeys[i]);
+            if (result == Result.NEW) result = QtUtil.recordBisectBuild(git, halfKeys[i], halfHeads[i]);
+            if (result != Result.NEW) {
+                logger.atSevere().log("qtcodereview: staging-approve failed to create bisect build %s result %s",
+                                      halfKeys[i], result);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the halves created so far and puts the failed build back, so
+     * that it can be rejected as usual.
+     */
+    private void restoreBisectedBuild(Branch.NameKey[] halfKeys, ObjectId buildId, boolean bisectBuild)
+                                      throws IOException {
+        for (Branch.NameKey halfKey : halfKeys) {
+            if (QtUtil.branchExists(git, halfKey)) {
+                qtUtil.deleteBuildRef(git, user.asIdentifiedUser(), projectKey, halfKey);
+            }
+        }
+
+        Result result = qtUtil.createBuildRef(git, user.asIdentifiedUser(), projectKey, buildId, buildBranchKey);
+        if (result == Result.NEW && bisectBuild) result = QtUtil.recordBisectBuild(git, buildBranchKey, buildId);
+        if (result != Result.NEW) {
+            // the changes are rejected anyway, only the build ref is lost
+            logger.atSevere().log("qtcodereview: staging-approve failed to restore build %s result %s",
+                                  buildBranchKey, result);
+        }
+    }
+
+    /**
+     * Picks the changes of a bisect build on top of the destination branch
+     * and moves the build ref there. The changes stay integrating until the
+     * rebased build is approved or rejected. If a change cannot be picked,
+     * the build is rejected.
+     */
+    private void rebaseBisectBuild(ObjectId destId, ObjectId buildId) throws UnloggedFailure,
+                                                                           QtUtil.MergeConflictException,
+                                                                           QtUtil.StagingLimitException,
+                                                                           UpdateException, RestApiException,
+                                                                           OrmException, IOException,
+                                                                           ConfigInvalidException {
+        // in build order, bottom first
+        List<ChangeData> changes = new ArrayList<>();
+        for (Entry<ChangeData,RevCommit> item : affectedChanges) {
+            if (item.getKey().change().getStatus() == Change.Status.INTEGRATING) changes.add(item.getKey());
+        }
+        Collections.reverse(changes);
+
+        ObjectId newId = destId;
+        try {
+            for (ChangeData cd : changes) {
+                ObjectId srcId = ObjectId.fromString(cd.currentPatchSet().getRevision().get());
+                newId = qtCherryPickPatch.pickPatch(session, cd, srcId, newId, false).toObjectId();
+            }
+        } catch (IntegrationException e) {
+            logger.atWarning().log("qtcodereview: staging-approve bisect build %s cannot be rebased: %s",
+                                   buildBranch, e.getMessage());
+            message = String.format("Bisect build %s cannot be rebased onto branch %s, changed back to NEW.",
+                                    buildBranch, destBranchKey);
+            rejectBuildChanges();
+            throw die(String.format("bisect build %s cannot be rebased onto branch %s, changes rejected",
+                                    buildBranch, destBranch));
+        }
+        session.flush();
+
+        Result result = QtUtil.updateRef(git, buildBranchKey.get(), newId, buildId, true);
+        if (result != Result.FORCED) {
+            logger.atSevere().log("qtcodereview: staging-approve failed to rebase bisect build %s result %s",
+                                  buildBranchKey, result);
+            throw die("bisect build " + buildBranch + " update failed: " + result);
+        }
+        referenceUpdated.fire(projectKey, buildBranchKey.get(), buildId, newId, user.asIdentifiedUser().state());
+        result = QtUtil.recordBisectBuild(git, buildBranchKey, newId);
+        if (result != Result.FORCED) {
+            logger.atWarning().log("qtcodereview: staging-approve failed to update bisect build record %s result %s",
+                                   buildBranchKey, result);
+        }
+        // the speculative builds of the build are based on the old commit
+        discardSpeculativeBuilds(buildBranchKey, null);
+
+        String rebaseMessage = String.format("Build %s rebased onto branch %s, waiting for a new build result",
+                                             buildBranch, destBranchKey);
+        QtChangeUpdateOp op = qtUpdateFactory.create(null, Change.Status.INTEGRATING, rebaseMessage,
+                                                     null, QtUtil.TAG_CI, null);
+        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
+            for (ChangeData cd : changes) {
+                u.addOp(cd.getId(), op);
+            }
+            u.execute();
+        }
+
+        logger.atInfo().log("qtcodereview: staging-approve bisect build %s rebased onto branch %s",
+                            buildBranch, destBranchKey);
+        throw die(String.format("bisect build %s is behind branch %s, it was rebased and must be built again",
+                                buildBranch, destBranch));
+    }
+
     private void updateChanges(List<Entry<ChangeData,RevCommit>> list,
                                Change.Status status,
                                Change.Status oldStatus,
@@ -269,20 +574,33 @@ class QtCommandBuildApprove extends SshCommand {
 
         List<Entry<ChangeData,RevCommit>> emailingList = new ArrayList<Map.Entry<ChangeData, RevCommit>>();
 
+        // the merge is recorded in bulk: the next patch set ids of all the changes come from one scan
+        // of the change refs, and the approvals to copy from a snapshot loaded before the update
+        Map<String, Ref> changeRefs = null;
+        if (status == Change.Status.MERGED) {
+            changeRefs = scanChangeRefs();
+            List<ChangeData> changes = new ArrayList<>();
+            for (Entry<ChangeData,RevCommit> item : list) {
+                changes.add(item.getKey());
+            }
+            ChangeData.ensureCurrentApprovalsLoaded(changes);
+        }
+
         // do the db update
         QtChangeUpdateOp op = qtUpdateFactory.create(status, oldStatus, changeMessage, null, tag, null);
-        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
+        try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.DB);
+             BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
             for (Entry<ChangeData,RevCommit> item : list) {
                 ChangeData cd = item.getKey();
                 Change change = cd.change();
                 if ((oldStatus == null || change.getStatus() == oldStatus)
                     && change.getStatus() != Change.Status.MERGED) {
                     if (status == Change.Status.MERGED) {
-                        ObjectId obj = git.resolve(cd.currentPatchSet().getRevision().get());
+                        ObjectId obj = ObjectId.fromString(cd.currentPatchSet().getRevision().get());
                         CodeReviewCommit currCommit = new CodeReviewCommit(obj);
                         currCommit.setPatchsetId(cd.currentPatchSet().getId());
                         CodeReviewCommit newCommit = new CodeReviewCommit(item.getValue());
-                        Change.Id changeId = insertPatchSet(u, git, cd.notes(), newCommit);
+                        Change.Id changeId = insertPatchSet(u, changeRefs, cd.notes(), newCommit);
                         if (!changeId.equals(cd.getId())) {
                             logger.atWarning().log("staging-approve wrong changeId for new patchSet %s != %s",
                                                    changeId, cd.getId());
@@ -292,7 +610,8 @@ class QtCommandBuildApprove extends SshCommand {
                                                                  changeMessage,
                                                                  null,
                                                                  tag,
-                                                                 currCommit));
+                                                                 currCommit)
+                                                         .setApprovals(cd.currentApprovals()));
                     } else {
                         u.addOp(change.getId(), op);
                     }
@@ -302,31 +621,50 @@ class QtCommandBuildApprove extends SshCommand {
             u.execute();
         }
 
-        // do rest
+        // do rest, the notifications are sent in the background if the outbox is enabled
+        boolean digest = qtNotificationOutbox.isDigestEnabled();
+        List<Change.Id> digestChanges = new ArrayList<>();
         for (Entry<ChangeData,RevCommit> item : emailingList) {
             ChangeData cd = item.getKey();
             Change change = cd.change();
+            if (digest) {
+                digestChanges.add(change.getId());
+            }
             if (passed) {
-                sendMergeEvent(cd);
-                sendMergedEmail(change.getId());
+                sendMergeEvent(change.getId());
+                if (!digest) sendMergedEmail(change.getId());
                 logger.atInfo().log("qtcodereview: staging-approve     change %s merged into %s",
                                     change, destBranchKey);
             } else {
-                sendBuildFailedEmail(change.getId());
+                if (!digest) sendBuildFailedEmail(change.getId());
                 logger.atInfo().log("qtcodereview: staging-approve     change %s rejected for %s",
                                     change, destBranchKey);
             }
         }
+        if (digest) {
+            qtNotificationOutbox.addDigest(passed, destBranchKey, buildBranch, digestChanges,
+                                           user.getAccountId(), passed ? null : message);
+        }
 
     }
 
+    /** Reads all the change refs of the project at once, by full ref name. */
+    private Map<String, Ref> scanChangeRefs() throws IOException {
+        Map<String, Ref> refs = new HashMap<>();
+        for (Ref ref : git.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES)) {
+            refs.put(ref.getName(), ref);
+        }
+        return refs;
+    }
+
     private Change.Id insertPatchSet(BatchUpdate bu,
-                                     Repository git,
+                                     Map<String, Ref> changeRefs,
                                      ChangeNotes destNotes,
                                      CodeReviewCommit cherryPickCommit)
                                      throws IOException, OrmException, BadRequestException, ConfigInvalidException {
         Change destChange = destNotes.getChange();
-        PatchSet.Id psId = ChangeUtil.nextPatchSetId(git, destChange.currentPatchSetId());
+        PatchSet.Id psId = ChangeUtil.nextPatchSetIdFromAllRefsMap(changeRefs, destChange.currentPatchSetId());
+        changeRefs.put(psId.toRefName(), null); // reserve the id
         PatchSetInserter inserter = patchSetInserterFactory.create(destNotes, psId, cherryPickCommit);
         inserter.setNotify(NotifyHandling.NONE)
                 .setAllowClosed(true);
@@ -335,17 +673,9 @@ class QtCommandBuildApprove extends SshCommand {
         return destChange.getId();
     }
 
-    private void sendMergeEvent(ChangeData changeData) throws OrmException {
-        Timestamp ts = TimeUtil.nowTs();
-
-        try {
-            PatchSet ps = changeData.currentPatchSet();
-            changeMerged.fire(changeData.change(), ps, user.asIdentifiedUser().state(),
-                              ps.getRevision().get(), ts);
-        } catch ( OrmException e)  {
-            logger.atInfo().log("qtcodereview: staging-approve sending merge event failed for %s",
-                                changeData.change());
-        }
+    private void sendMergeEvent(Change.Id changeId) {
+        qtNotificationOutbox.add(QtNotificationOutbox.Type.MERGED_EVENT, projectKey, changeId,
+                                 user.getAccountId(), null);
     }
 
     private void readMessageParameter() throws UnloggedFailure {
@@ -370,24 +700,13 @@ class QtCommandBuildApprove extends SshCommand {
     }
 
     private void sendMergedEmail(Change.Id changeId) {
-        try {
-            MergedSender mcm = mergedSenderFactory.create(projectKey, changeId);
-            mcm.setFrom(user.getAccountId());
-            mcm.send();
-        } catch (Exception e) {
-            logger.atWarning().log("qtcodereview: staging-approve Merged notification not sent for %s %s", changeId, e);
-        }
+        qtNotificationOutbox.add(QtNotificationOutbox.Type.MERGED_EMAIL, projectKey, changeId,
+                                 user.getAccountId(), null);
     }
 
     private void sendBuildFailedEmail(Change.Id changeId) {
-        try {
-            QtBuildFailedSender cm = qtBuildFailedSenderFactory.create(projectKey, changeId);
-            cm.setFrom(user.getAccountId());
-            cm.setChangeMessage(message, TimeUtil.nowTs());
-            cm.send();
-        } catch (Exception e) {
-            logger.atWarning().log("qtcodereview: staging-approve Build Failed not sent notification for %s %s", changeId, e);
-        }
+        qtNotificationOutbox.add(QtNotificationOutbox.Type.BUILD_FAILED_EMAIL, projectKey, changeId,
+                                 user.getAccountId(), message);
     }
 
 }
@@ -10,7 +10,6 @@ import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.RefPermission;
@@ -40,7 +39,7 @@ class QtCommandListStaging extends SshCommand {
     private PermissionBackend permissionBackend;
 
     @Inject
-    private GitRepositoryManager gitManager;
+    private QtGitSession.Factory qtGitSessionFactory;
 
     @Inject
     private ReviewDb db;
@@ -62,6 +61,7 @@ class QtCommandListStaging extends SshCommand {
 
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+    private QtGitSession session;
     private Repository git;
 
 
@@ -76,7 +76,8 @@ class QtCommandListStaging extends SshCommand {
         Branch.NameKey destBranchShortKey =  QtUtil.getNameKeyShort(project, QtUtil.R_HEADS, destination);
 
         try {
-            git = gitManager.openRepository(projectKey);
+            session = qtGitSessionFactory.open(projectKey);
+            git = session.getRepository();
 
             permissionBackend.user(user).project(projectKey).ref(aBranchKey.get()).check(RefPermission.READ);
             permissionBackend.user(user).project(projectKey).ref(destBranchShortKey.get()).check(RefPermission.READ);
@@ -85,7 +86,7 @@ class QtCommandListStaging extends SshCommand {
                 throw die("branch ref not found");
             }
 
-            final List<Entry<ChangeData,RevCommit>> open = qtUtil.listChangesNotMerged(git, aBranchKey, destBranchShortKey);
+            final List<Entry<ChangeData,RevCommit>> open = qtUtil.listChangesNotMerged(session, aBranchKey, destBranchShortKey);
 
             for (Entry<ChangeData, RevCommit> item : open) {
                 final Change change = item.getKey().change();
@@ -116,8 +117,8 @@ class QtCommandListStaging extends SshCommand {
            throw die("cannot access Gerrit database");
         } finally {
             stdout.flush();
-            if (git != null) {
-                git.close();
+            if (session != null) {
+                session.close();
             }
         }
     }
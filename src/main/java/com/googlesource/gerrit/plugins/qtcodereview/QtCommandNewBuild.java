@@ -5,6 +5,7 @@
 package com.googlesource.gerrit.plugins.qtcodereview;
 
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.reviewdb.client.Branch;
@@ -13,7 +14,7 @@ import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.InternalUser;
-import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.ProjectPermission;
@@ -40,8 +41,10 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.TreeSet;
 
 @CommandMetaData(name="staging-new-build", description="Create unique build branch of the current staging branch and change the gerrit status of the changes to INTEGRATING.")
 class QtCommandNewBuild extends SshCommand {
@@ -50,7 +53,10 @@ class QtCommandNewBuild extends SshCommand {
     private PermissionBackend permissionBackend;
 
     @Inject
-    private GitRepositoryManager gitManager;
+    private QtGitSession.Factory qtGitSessionFactory;
+
+    @Inject
+    private QtBranchLock qtBranchLock;
 
     @Inject
     private Provider<ReviewDb> dbProvider;
@@ -61,9 +67,22 @@ class QtCommandNewBuild extends SshCommand {
     @Inject
     private QtUtil qtUtil;
 
+    @Inject
+    private QtRebuildScheduler qtRebuildScheduler;
+
     @Inject
     private QtChangeUpdateOp.Factory qtUpdateFactory;
 
+    @Inject
+    private PluginConfigFactory cfgFactory;
+
+    @Inject
+    private QtMetrics qtMetrics;
+
+    @Inject
+    @PluginName
+    private String pluginName;
+
     @Option(name = "--project", aliases = {"-p"},
         required = true, usage = "project name")
     private String project;
@@ -76,8 +95,18 @@ class QtCommandNewBuild extends SshCommand {
         required = true, usage = "build id, e.g. refs/builds/my_build or just my_build")
     private String build;
 
+    @Option(name = "--prefix", metaVar = "SIZE",
+        usage = "also create speculative build <build-id>.SIZE of the first SIZE changes, can be given multiple times")
+    private List<Integer> prefixSizes = new ArrayList<>();
+
+    @Option(name = "--trace",
+        usage = "log a detailed trace of the command, the trace id is printed to stderr")
+    private boolean trace;
+
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+    private QtBranchLock.Held branchLock;
+    private QtGitSession session;
     private Repository git;
 
 
@@ -86,18 +115,29 @@ class QtCommandNewBuild extends SshCommand {
 
         logger.atInfo().log("qtcodereview: staging-new-build -p %s -s %s -i %s", project, stagingBranch, build);
 
+        QtTrace commandTrace = QtTrace.open("staging-new-build " + project + " " + build, trace);
+        if (trace) stderr.println("trace: " + commandTrace.getId());
+        QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.NEW_BUILD);
         try {
             Project.NameKey projectKey = new Project.NameKey(project);
-            git = gitManager.openRepository(projectKey);
+            session = qtGitSessionFactory.open(projectKey);
+            git = session.getRepository();
 
             Branch.NameKey buildBranchKey = QtUtil.getNameKeyLong(project, QtUtil.R_BUILDS, build);
             Branch.NameKey stagingBranchKey = QtUtil.getNameKeyLong(project, QtUtil.R_STAGING, stagingBranch);
             Branch.NameKey destBranchShortKey =  QtUtil.getNameKeyShort(project, QtUtil.R_STAGING, stagingBranch);
             Branch.NameKey destinationKey = QtUtil.getNameKeyLong(project, QtUtil.R_HEADS, stagingBranch);
+            branchLock = qtBranchLock.lock(destinationKey);
+
+            if (prefixSizes.isEmpty()) prefixSizes = getConfiguredPrefixSizes();
 
             // Check required permissions
             permissionBackend.user(user).project(projectKey).ref(destinationKey.get()).check(RefPermission.UPDATE);
             permissionBackend.user(user).project(projectKey).ref(buildBranchKey.get()).check(RefPermission.CREATE);
+            for (int size : prefixSizes) {
+                Branch.NameKey speculativeKey = QtUtil.getSpeculativeBuild(buildBranchKey, size);
+                permissionBackend.user(user).project(projectKey).ref(speculativeKey.get()).check(RefPermission.CREATE);
+            }
 
             if (QtUtil.branchExists(git, buildBranchKey) == true) {
                 logger.atSevere().log("qtcodereview: staging-new-build Target build %s already exists", buildBranchKey);
@@ -109,9 +149,18 @@ class QtCommandNewBuild extends SshCommand {
                 throw die("Staging ref not found!");
             }
 
+            // a delayed rebuild must be done first, until then the staging ref can
+            // still have changes that are not staged anymore
+            if (qtRebuildScheduler.cancel(destinationKey)) {
+                qtUtil.rebuildStagingBranch(session, user.asIdentifiedUser(), stagingBranchKey, destBranchShortKey);
+            }
+
             // Create build reference.
-            Result result = qtUtil.createBuildRef(git, user.asIdentifiedUser(),
-                                                  projectKey, stagingBranchKey, buildBranchKey);
+            Result result;
+            try (QtMetrics.PhaseTimer refTimer = qtMetrics.start(QtMetrics.Phase.REF)) {
+                result = qtUtil.createBuildRef(git, user.asIdentifiedUser(),
+                                               projectKey, stagingBranchKey, buildBranchKey);
+            }
             String message = String.format("Added to build %s for %s", build, destinationKey);
 
             if (result != Result.NEW && result != Result.FAST_FORWARD) {
@@ -120,7 +169,7 @@ class QtCommandNewBuild extends SshCommand {
                 throw new UnloggedFailure(1, "fatal: failed to create new build ref: " + result);
             } else {
                 // list the changes in staging branch but missing from the destination branch
-                List<Entry<ChangeData, RevCommit>> openChanges = qtUtil.listChangesNotMerged(git, buildBranchKey, destBranchShortKey);
+                List<Entry<ChangeData, RevCommit>> openChanges = qtUtil.listChangesNotMerged(session, buildBranchKey, destBranchShortKey);
 
                 // Make sure that there are changes in the staging branch.
                 if (openChanges.isEmpty()) {
@@ -129,7 +178,8 @@ class QtCommandNewBuild extends SshCommand {
                 }
 
                 QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.INTEGRATING, Change.Status.STAGED, message, null, QtUtil.TAG_CI, null);
-                try (BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
+                try (QtMetrics.PhaseTimer dbTimer = qtMetrics.start(QtMetrics.Phase.DB);
+                     BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
                     for (Entry<ChangeData, RevCommit> item: openChanges) {
                         Change change = item.getKey().change();
                         if (change.getStatus() == Change.Status.STAGED) {
@@ -143,9 +193,12 @@ class QtCommandNewBuild extends SshCommand {
                     }
                     u.execute();
                 }
+
+                createSpeculativeBuilds(projectKey, buildBranchKey, destinationKey);
             }
 
             logger.atInfo().log("qtcodereview: staging-new-build build %s for %s created", build, destBranchShortKey);
+            timer.succeeded();
 
         } catch (AuthException e) {
             logger.atSevere().log("qtcodereview: staging-new-build Authentication failed to access repository: %s", e);
@@ -167,13 +220,66 @@ class QtCommandNewBuild extends SshCommand {
         } catch (NoSuchRefException e) {
             logger.atSevere().log("qtcodereview: staging-new-build Invalid branch name %s", e);
             throw die("Invalid branch name");
+        } catch (QtUtil.MergeConflictException e) {
+            logger.atSevere().log("qtcodereview: staging-new-build staging ref rebuild failed %s", e);
+            throw die("staging rebuild failed, merge conflict");
+        } catch (QtUtil.StagingLimitException e) {
+            logger.atSevere().log("qtcodereview: staging-new-build staging ref rebuild failed %s", e);
+            throw die("staging rebuild failed, staging ref limit exceeded: " + e.getMessage());
         } catch (UpdateException | RestApiException e) {
             logger.atSevere().log("qtcodereview: staging-new-build failed to update change status %s", e);
             throw die("Failed to update change status");
         } finally {
-            if (git != null) {
-                git.close();
+            timer.close();
+            commandTrace.close();
+            if (session != null) {
+                session.close();
+            }
+            if (branchLock != null) {
+                branchLock.close();
+            }
+        }
+    }
+
+    private List<Integer> getConfiguredPrefixSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (String value : cfgFactory.getFromGerritConfig(pluginName).getStringList("speculativeBuildSize")) {
+            try {
+                sizes.add(Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                logger.atWarning().log("qtcodereview: staging-new-build invalid speculativeBuildSize %s", value);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Creates the speculative builds of the first changes of the build. A
+     * build is created only if it is smaller than the whole build; each of
+     * them is the commit of its last change in the build, so nothing needs
+     * to be picked again.
+     */
+    private void createSpeculativeBuilds(Project.NameKey projectKey,
+                                         Branch.NameKey buildBranchKey,
+                                         Branch.NameKey destinationKey)
+                                         throws IOException, UnloggedFailure {
+        if (prefixSizes.isEmpty()) return;
+
+        List<RevCommit> commits = QtUtil.listFirstParents(session, git.resolve(buildBranchKey.get()),
+                                                          git.resolve(destinationKey.get()));
+        for (int size : new TreeSet<>(prefixSizes)) {
+            if (size < 1 || size >= commits.size()) continue;
+
+            Branch.NameKey speculativeKey = QtUtil.getSpeculativeBuild(buildBranchKey, size);
+            Result result = qtUtil.createBuildRef(git, user.asIdentifiedUser(), projectKey,
+                                                  commits.get(size - 1), speculativeKey);
+            if (result == Result.NEW) result = QtUtil.recordSpeculativeBuild(git, speculativeKey, commits.get(size - 1));
+            if (result != Result.NEW) {
+                logger.atSevere().log("qtcodereview: staging-new-build failed to create speculative build %s result %s",
+                                      speculativeKey, result);
+                throw new UnloggedFailure(1, "fatal: failed to create speculative build ref: " + result);
             }
+            stdout.println(speculativeKey.get());
         }
     }
 
@@ -10,7 +10,6 @@ import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.RefPermission;
@@ -35,7 +34,10 @@ class QtCommandRebuildStaging extends SshCommand {
     private PermissionBackend permissionBackend;
 
     @Inject
-    private GitRepositoryManager gitManager;
+    private QtGitSession.Factory qtGitSessionFactory;
+
+    @Inject
+    private QtBranchLock qtBranchLock;
 
     @Inject
     private ReviewDb db;
@@ -46,6 +48,9 @@ class QtCommandRebuildStaging extends SshCommand {
     @Inject
     private QtUtil qtUtil;
 
+    @Inject
+    private QtRebuildScheduler qtRebuildScheduler;
+
     @Option(name = "--project", aliases = {"-p"},
         required = true, usage = "project name")
     private String project;
@@ -54,8 +59,14 @@ class QtCommandRebuildStaging extends SshCommand {
         required = true, usage = "branch name, e.g. refs/heads/master or just master")
     private String branch;
 
+    @Option(name = "--trace",
+        usage = "log a detailed trace of the command, the trace id is printed to stderr")
+    private boolean trace;
+
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+    private QtBranchLock.Held branchLock;
+    private QtGitSession session;
     private Repository git;
 
 
@@ -66,15 +77,21 @@ class QtCommandRebuildStaging extends SshCommand {
         Branch.NameKey stagingBranchKey = QtUtil.getNameKeyLong(project, QtUtil.R_STAGING, branch);
         Branch.NameKey destBranchShortKey = QtUtil.getNameKeyShort(project, QtUtil.R_HEADS, branch);
 
+        QtTrace commandTrace = QtTrace.open("staging-rebuild " + project + " " + branch, trace);
+        if (trace) stderr.println("trace: " + commandTrace.getId());
         try {
             Project.NameKey projectKey = new Project.NameKey(project);
-            git = gitManager.openRepository(projectKey);
+            branchLock = qtBranchLock.lock(destBranchShortKey);
+            session = qtGitSessionFactory.open(projectKey);
+            git = session.getRepository();
 
             permissionBackend.user(user).project(projectKey).ref(destBranchShortKey.get()).check(RefPermission.UPDATE);
 
             if (git.resolve(stagingBranchKey.get()) == null) throw die("branch staging ref not found");
 
-            qtUtil.rebuildStagingBranch(git, user.asIdentifiedUser(), projectKey, stagingBranchKey, destBranchShortKey);
+            // this rebuild covers any scheduled one
+            qtRebuildScheduler.cancel(destBranchShortKey);
+            qtUtil.rebuildStagingBranch(session, user.asIdentifiedUser(), stagingBranchKey, destBranchShortKey);
 
             logger.atInfo().log("qtcodereview: staging-rebuild done for %s", stagingBranchKey);
         } catch (AuthException e) {
@@ -91,9 +108,16 @@ class QtCommandRebuildStaging extends SshCommand {
         } catch (QtUtil.MergeConflictException e) {
             logger.atSevere().log("qtcodereview: staging-rebuild error %s", e);
             throw die("staging rebuild failed, merge conflict");
+        } catch (QtUtil.StagingLimitException e) {
+            logger.atSevere().log("qtcodereview: staging-rebuild error %s", e);
+            throw die("staging rebuild failed, staging ref limit exceeded: " + e.getMessage());
         } finally {
-            if (git != null) {
-                git.close();
+            commandTrace.close();
+            if (session != null) {
+                session.close();
+            }
+            if (branchLock != null) {
+                branchLock.close();
             }
         }
 
@@ -0,0 +1,94 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.RefPermission;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.gerrit.sshd.CommandMetaData;
+
+import com.google.inject.Inject;
+
+import org.kohsuke.args4j.Option;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+@CommandMetaData(name = "staging-queue", description = "List the queued stage and unstage requests and their state when asynchronous staging is enabled.")
+class QtCommandStagingQueue extends SshCommand {
+
+    @Inject
+    private PermissionBackend permissionBackend;
+
+    @Inject
+    private QtStagingQueue qtStagingQueue;
+
+    @Option(name = "--project", aliases = {"-p"},
+        required = true, usage = "project name")
+    private String project;
+
+    @Option(name = "--branch", aliases = {"-b"},
+        usage = "destination branch filter, e.g. refs/heads/master or just master")
+    private String branch;
+
+    @Option(name = "--request", aliases = {"-r"},
+        usage = "request id, only this request is listed")
+    private Long requestId;
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    @Override
+    protected void run() throws UnloggedFailure {
+        logger.atInfo().log("qtcodereview: staging-queue -p %s -b %s -r %s", project, branch, requestId);
+
+        final PrintWriter stdout = toPrintWriter(out);
+
+        Project.NameKey projectKey = new Project.NameKey(project);
+        Branch.NameKey branchKey = branch == null ? null : QtUtil.getNameKeyLong(project, QtUtil.R_HEADS, branch);
+
+        try {
+            if (!qtStagingQueue.isEnabled()) {
+                throw die("asynchronous staging is not enabled");
+            }
+
+            List<QtStagingQueue.Request> requests;
+            if (requestId != null) {
+                QtStagingQueue.Request request = qtStagingQueue.get(requestId);
+                if (request == null
+                    || !request.getBranch().getParentKey().equals(projectKey)
+                    || (branchKey != null && !request.getBranch().equals(branchKey))) {
+                    throw die("request not found");
+                }
+                requests = Collections.singletonList(request);
+            } else {
+                requests = qtStagingQueue.list(projectKey, branchKey);
+            }
+
+            for (QtStagingQueue.Request request : requests) {
+                permissionBackend.user(user).project(projectKey).ref(request.getBranch().get()).check(RefPermission.READ);
+                String message = request.getMessage();
+                stdout.println(request.getId() + " " + request.getType() + " " + request.getChangeId() + " "
+                               + request.getBranch().get() + " " + request.getState()
+                               + (message == null ? "" : " " + message));
+            }
+
+            logger.atInfo().log("qtcodereview: staging-queue done");
+        } catch (AuthException e) {
+            logger.atSevere().log("qtcodereview: staging-queue Authentication failed to access repository: %s", e);
+            throw die("not authorized");
+        } catch (PermissionBackendException e) {
+            logger.atSevere().log("qtcodereview: staging-queue permission error %s", e);
+            throw die("permission error");
+        } finally {
+            stdout.flush();
+        }
+    }
+}
@@ -56,18 +56,21 @@ class QtDefer extends RetryingRestModifyView<ChangeResource, AbandonInput, Chang
     private final ChangeJson.Factory json;
     private final PatchSetUtil psUtil;
     private final QtChangeUpdateOp.Factory qtUpdateFactory;
+    private final QtMetrics qtMetrics;
 
     @Inject
     QtDefer(Provider<ReviewDb> dbProvider,
             ChangeJson.Factory json,
             RetryHelper retryHelper,
             PatchSetUtil psUtil,
-            QtChangeUpdateOp.Factory qtUpdateFactory) {
+            QtChangeUpdateOp.Factory qtUpdateFactory,
+            QtMetrics qtMetrics) {
         super(retryHelper);
         this.dbProvider = dbProvider;
         this.json = json;
         this.psUtil = psUtil;
         this.qtUpdateFactory = qtUpdateFactory;
+        this.qtMetrics = qtMetrics;
     }
 
     @Override
@@ -77,29 +80,32 @@ class QtDefer extends RetryingRestModifyView<ChangeResource, AbandonInput, Chang
                                    throws RestApiException, UpdateException,
                                           OrmException, PermissionBackendException,
                                           IOException {
-        Change change = rsrc.getChange();
-        logger.atInfo().log("qtcodereview: defer %s", rsrc.getChange().toString());
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.DEFER)) {
+            Change change = rsrc.getChange();
+            logger.atInfo().log("qtcodereview: defer %s", rsrc.getChange().toString());
 
-        // Not allowed to defer if the current patch set is locked.
-        psUtil.checkPatchSetNotLocked(rsrc.getNotes());
+            // Not allowed to defer if the current patch set is locked.
+            psUtil.checkPatchSetNotLocked(rsrc.getNotes());
 
-        // Defer uses same permission as abandon
-        rsrc.permissions().database(dbProvider).check(ChangePermission.ABANDON);
+            // Defer uses same permission as abandon
+            rsrc.permissions().database(dbProvider).check(ChangePermission.ABANDON);
 
-        if (change.getStatus() != Change.Status.NEW && change.getStatus() != Change.Status.ABANDONED) {
-            logger.atSevere().log("qtcodereview: defer: change %s status wrong %s", change, change.getStatus());
-            throw new ResourceConflictException("change is " + ChangeUtil.status(change));
-        }
+            if (change.getStatus() != Change.Status.NEW && change.getStatus() != Change.Status.ABANDONED) {
+                logger.atSevere().log("qtcodereview: defer: change %s status wrong %s", change, change.getStatus());
+                throw new ResourceConflictException("change is " + ChangeUtil.status(change));
+            }
 
-        QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.DEFERRED, null, "Deferred", input.message, ChangeMessagesUtil.TAG_ABANDON, null);
-        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), change.getProject(), rsrc.getUser(), TimeUtil.nowTs())) {
-            u.addOp(rsrc.getId(), op).execute();
-        }
+            QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.DEFERRED, null, "Deferred", input.message, ChangeMessagesUtil.TAG_ABANDON, null);
+            try (BatchUpdate u =  updateFactory.create(dbProvider.get(), change.getProject(), rsrc.getUser(), TimeUtil.nowTs())) {
+                u.addOp(rsrc.getId(), op).execute();
+            }
 
-        change = op.getChange();
-        logger.atInfo().log("qtcodereview: deferred %s", change);
+            change = op.getChange();
+            logger.atInfo().log("qtcodereview: deferred %s", change);
 
-        return json.noOptions().format(change);
+            timer.succeeded();
+            return json.noOptions().format(change);
+        }
     }
 
     @Override
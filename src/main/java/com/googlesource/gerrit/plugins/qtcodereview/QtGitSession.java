@@ -0,0 +1,128 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.CodeReviewCommit;
+import com.google.gerrit.server.git.CodeReviewCommit.CodeReviewRevWalk;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.MergeUtil;
+import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+
+/**
+ * Git state shared by all the steps of one stage, unstage, rebuild or approve
+ * operation: the repository is opened once, and one inserter, reader and
+ * RevWalk are used for every commit read or created. Objects inserted during
+ * the operation are visible to the reader right away; they are written to the
+ * repository with a single flush before the refs are updated.
+ */
+public class QtGitSession implements AutoCloseable {
+
+    @Singleton
+    public static class Factory {
+        private final GitRepositoryManager repoManager;
+        private final ProjectCache projectCache;
+        private final MergeUtil.Factory mergeUtilFactory;
+        private final QtChangeIdIndex qtChangeIdIndex;
+
+        @Inject
+        Factory(GitRepositoryManager repoManager,
+                ProjectCache projectCache,
+                MergeUtil.Factory mergeUtilFactory,
+                QtChangeIdIndex qtChangeIdIndex) {
+            this.repoManager = repoManager;
+            this.projectCache = projectCache;
+            this.mergeUtilFactory = mergeUtilFactory;
+            this.qtChangeIdIndex = qtChangeIdIndex;
+        }
+
+        /**
+         * Opens a session for a project.
+         * @param project Project to open.
+         * @return Session, to be closed by the caller.
+         * @throws IOException Thrown if the repository cannot be opened,
+         *         RepositoryNotFoundException if it does not exist.
+         */
+        public QtGitSession open(Project.NameKey project) throws IOException {
+            return new QtGitSession(this, project, repoManager.openRepository(project));
+        }
+    }
+
+    private final Factory factory;
+    private final Project.NameKey project;
+    private final Repository repository;
+    private final ObjectInserter inserter;
+    private final ObjectReader reader;
+    private final CodeReviewRevWalk revWalk;
+    private MergeUtil mergeUtil;
+
+    private QtGitSession(Factory factory, Project.NameKey project, Repository repository) {
+        this.factory = factory;
+        this.project = project;
+        this.repository = repository;
+        this.inserter = repository.newObjectInserter();
+        this.reader = inserter.newReader();
+        this.revWalk = CodeReviewCommit.newRevWalk(reader);
+    }
+
+    public Project.NameKey getProject() {
+        return project;
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    public ObjectInserter getInserter() {
+        return inserter;
+    }
+
+    public ObjectReader getReader() {
+        return reader;
+    }
+
+    /** RevWalk of the session. Users must not rely on its state between calls. */
+    public CodeReviewRevWalk getRevWalk() {
+        return revWalk;
+    }
+
+    /** Change-Ids of the commits of the project, see QtChangeIdIndex. */
+    public QtChangeIdIndex.Lookup getChangeIds() {
+        return factory.qtChangeIdIndex.get(project);
+    }
+
+    /** MergeUtil for the project, created on first use. */
+    public MergeUtil getMergeUtil() throws IOException, NoSuchProjectException {
+        if (mergeUtil == null) {
+            ProjectState projectState = factory.projectCache.checkedGet(project);
+            if (projectState == null) throw new NoSuchProjectException(project);
+            mergeUtil = factory.mergeUtilFactory.create(projectState, true);
+        }
+        return mergeUtil;
+    }
+
+    /** Writes the objects inserted so far, call before updating any ref to them. */
+    public void flush() throws IOException {
+        inserter.flush();
+    }
+
+    @Override
+    public void close() {
+        revWalk.close();
+        reader.close();
+        inserter.close();
+        repository.close();
+    }
+}
@@ -0,0 +1,175 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Metrics of the plugin, reported under plugins/gerrit-plugin-qt-workflow. */
+@Singleton
+public class QtMetrics {
+
+    /** Operations of the workflow, timed as a whole. */
+    public enum Operation {
+        STAGE, UNSTAGE, DEFER, ABANDON, REOPEN, NEW_BUILD, APPROVE_PASS, APPROVE_FAIL,
+        REBUILD, CHERRY_PICK, MERGE
+    }
+
+    /** Phases of the operations, timed separately across all the operations. */
+    public enum Phase { QUERY, WALK, PICK, DB, REF, NOTIFY }
+
+    final Timer0 stagingLockWait;
+    final Timer0 stagingLockHold;
+    final Counter0 stagingUpdateRetries;
+    final Counter0 stagingRebuildsCoalesced;
+    final AtomicLong notificationOutboxDepth = new AtomicLong();
+    final Timer0 notificationLatency;
+    final Counter0 notificationFailures;
+    final Timer1<Operation> operationLatency;
+    final Counter1<Operation> operationFailures;
+    final Counter1<Operation> conflicts;
+    final Histogram0 buildChanges;
+    final Timer1<Phase> phaseLatency;
+
+    @Inject
+    QtMetrics(MetricMaker metricMaker) {
+        stagingLockWait = metricMaker.newTimer(
+            "staging_lock/wait_time",
+            new Description("Time waited for the staging lock of a branch")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+        stagingLockHold = metricMaker.newTimer(
+            "staging_lock/hold_time",
+            new Description("Time the staging lock of a branch was held")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+        stagingUpdateRetries = metricMaker.newCounter(
+            "staging_ref/update_retries",
+            new Description("Staging ref updates retried because the ref was changed concurrently")
+                .setRate()
+                .setUnit("retries"));
+        stagingRebuildsCoalesced = metricMaker.newCounter(
+            "staging_rebuild/coalesced",
+            new Description("Staging rebuilds saved because they were merged into another rebuild of the branch")
+                .setRate()
+                .setUnit("rebuilds"));
+        metricMaker.newCallbackMetric(
+            "notification/outbox_depth",
+            Long.class,
+            new Description("Notifications of staging-approve waiting in the outbox")
+                .setGauge()
+                .setUnit("notifications"),
+            notificationOutboxDepth::get);
+        notificationLatency = metricMaker.newTimer(
+            "notification/latency",
+            new Description("Time from queueing a notification to its delivery")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+        notificationFailures = metricMaker.newCounter(
+            "notification/failures",
+            new Description("Notifications dropped after all delivery attempts failed")
+                .setRate()
+                .setUnit("notifications"));
+        operationLatency = metricMaker.newTimer(
+            "operation/latency",
+            new Description("Time taken by an operation of the workflow")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofEnum(Operation.class, "operation"));
+        operationFailures = metricMaker.newCounter(
+            "operation/failures",
+            new Description("Operations of the workflow that failed")
+                .setRate()
+                .setUnit("operations"),
+            Field.ofEnum(Operation.class, "operation"));
+        conflicts = metricMaker.newCounter(
+            "operation/conflicts",
+            new Description("Cherry-picks and merges that failed with a conflict")
+                .setRate()
+                .setUnit("conflicts"),
+            Field.ofEnum(Operation.class, "operation"));
+        buildChanges = metricMaker.newHistogram(
+            "build/changes",
+            new Description("Changes in a build approved by staging-approve")
+                .setCumulative()
+                .setUnit("changes"));
+        phaseLatency = metricMaker.newTimer(
+            "phase/latency",
+            new Description("Time taken by a phase of the workflow operations")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofEnum(Phase.class, "phase"));
+    }
+
+    /**
+     * Starts timing an operation. The operation counts as failed unless
+     * {@link OperationTimer#succeeded()} is called before the timer is closed.
+     */
+    public OperationTimer start(Operation operation) {
+        return new OperationTimer(operation);
+    }
+
+    /**
+     * Starts timing a phase, the time is recorded when the timer is closed,
+     * also in the open trace of the thread.
+     */
+    public PhaseTimer start(Phase phase) {
+        return new PhaseTimer(phase);
+    }
+
+    public class OperationTimer implements AutoCloseable {
+        private final Operation operation;
+        private final QtTrace trace;
+        private final long start = System.nanoTime();
+        private boolean succeeded;
+
+        private OperationTimer(Operation operation) {
+            this.operation = operation;
+            this.trace = QtTrace.open(operation.name().toLowerCase(), false);
+        }
+
+        public void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            operationLatency.record(operation, System.nanoTime() - start, NANOSECONDS);
+            if (!succeeded) {
+                operationFailures.increment(operation);
+                QtTrace.detail("%s failed", operation.name().toLowerCase());
+            }
+            trace.close();
+        }
+    }
+
+    public class PhaseTimer implements AutoCloseable {
+        private final Phase phase;
+        private final long start = System.nanoTime();
+
+        private PhaseTimer(Phase phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public void close() {
+            long took = System.nanoTime() - start;
+            phaseLatency.record(phase, took, NANOSECONDS);
+            QtTrace.phase(phase, took);
+        }
+    }
+}
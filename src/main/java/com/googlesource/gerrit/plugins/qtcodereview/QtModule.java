@@ -6,15 +6,18 @@ package com.googlesource.gerrit.plugins.qtcodereview;
 
 import static com.google.gerrit.server.change.ChangeResource.CHANGE_KIND;
 import static com.google.gerrit.server.change.RevisionResource.REVISION_KIND;
+import static com.google.gerrit.server.project.BranchResource.BRANCH_KIND;
 
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.config.FactoryModule;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
 import com.google.gerrit.server.git.ChangeMessageModifier;
 
 import com.google.inject.Inject;
 import com.google.inject.AbstractModule;
+import com.google.inject.internal.UniqueAnnotations;
 
 public class QtModule extends FactoryModule  {
 
@@ -24,8 +27,15 @@ public class QtModule extends FactoryModule  {
     protected void configure() {
 
         factory(QtBuildFailedSender.Factory.class);
+        factory(QtBuildDigestSender.Factory.class);
         factory(QtChangeUpdateOp.Factory.class);
         DynamicSet.bind(binder(), ChangeMessageModifier.class).to(QtChangeMessageModifier.class);
+        install(QtCherryPickCache.module());
+        bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(QtStagingQueue.class);
+        bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(QtRebuildScheduler.class);
+        bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(QtNotificationOutbox.class);
+        bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(QtStagingStats.class);
+        bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(QtChangeIdIndex.class);
 
         install(
             new RestApiModule() {
@@ -36,6 +46,7 @@ public class QtModule extends FactoryModule  {
                     post(CHANGE_KIND, "reopen").to(QtReOpen.class);
                     post(REVISION_KIND, "stage").to(QtStage.class);
                     post(REVISION_KIND, "unstage").to(QtUnStage.class);
+                    post(BRANCH_KIND, "stage").to(QtStageBatch.class);
                 }
             }
         );
@@ -0,0 +1,386 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.OutputFormat;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.extensions.events.ChangeMerged;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.mail.send.MergedSender;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbox of the emails and events of staging-approve. If asynchronous
+ * notifications are enabled, each notification is written to a file in the
+ * plugin data directory and delivered by a background executor, so that the
+ * build result is not held up by the mail server. A failed delivery is
+ * retried with an exponential backoff. Notifications left in the outbox
+ * when the server stops are delivered after the next start.
+ *
+ * Otherwise the notifications are delivered right away by the caller.
+ */
+@Singleton
+public class QtNotificationOutbox implements LifecycleListener {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final String OUTBOX = "outbox";
+    private static final String SUFFIX = ".json";
+    private static final String BAD_SUFFIX = ".bad";
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_ATTEMPTS = 8;
+    private static final long RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+    public enum Type { MERGED_EVENT, MERGED_EMAIL, BUILD_FAILED_EMAIL, MERGED_DIGEST, BUILD_FAILED_DIGEST }
+
+    private static class Notification {
+        Type type;
+        String project;
+        int change;
+        int account;
+        String message;
+        String branch;
+        String build;
+        List<Integer> changes;
+        // recipients of a digest that have got it, not sent again on retry
+        List<Integer> delivered;
+        long queued;
+        int attempts;
+        transient Path file;
+    }
+
+    private final WorkQueue workQueue;
+    private final OneOffRequestContext requestContext;
+    private final IdentifiedUser.GenericFactory userFactory;
+    private final Provider<ReviewDb> dbProvider;
+    private final ChangeData.Factory changeDataFactory;
+    private final ChangeMerged changeMerged;
+    private final MergedSender.Factory mergedSenderFactory;
+    private final QtBuildFailedSender.Factory qtBuildFailedSenderFactory;
+    private final QtBuildDigest qtBuildDigest;
+    private final QtMetrics qtMetrics;
+    private final Path outbox;
+    private final boolean enabled;
+    private final boolean digest;
+    private final int threads;
+    private final int attempts;
+
+    private final Gson gson = OutputFormat.JSON_COMPACT.newGson();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile ScheduledExecutorService executor;
+
+    @Inject
+    QtNotificationOutbox(WorkQueue workQueue,
+                         OneOffRequestContext requestContext,
+                         IdentifiedUser.GenericFactory userFactory,
+                         Provider<ReviewDb> dbProvider,
+                         ChangeData.Factory changeDataFactory,
+                         ChangeMerged changeMerged,
+                         MergedSender.Factory mergedSenderFactory,
+                         QtBuildFailedSender.Factory qtBuildFailedSenderFactory,
+                         QtBuildDigest qtBuildDigest,
+                         QtMetrics qtMetrics,
+                         PluginConfigFactory cfgFactory,
+                         @PluginName String pluginName,
+                         @PluginData Path dataDir) {
+        this.workQueue = workQueue;
+        this.requestContext = requestContext;
+        this.userFactory = userFactory;
+        this.dbProvider = dbProvider;
+        this.changeDataFactory = changeDataFactory;
+        this.changeMerged = changeMerged;
+        this.mergedSenderFactory = mergedSenderFactory;
+        this.qtBuildFailedSenderFactory = qtBuildFailedSenderFactory;
+        this.qtBuildDigest = qtBuildDigest;
+        this.qtMetrics = qtMetrics;
+        this.outbox = dataDir.resolve(OUTBOX);
+
+        PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
+        this.enabled = cfg.getBoolean("asyncNotifications", false);
+        this.digest = cfg.getBoolean("digestEmails", false);
+        this.threads = Math.max(1, cfg.getInt("notificationThreads", DEFAULT_THREADS));
+        this.attempts = Math.max(1, cfg.getInt("notificationAttempts", DEFAULT_ATTEMPTS));
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled) return;
+
+        executor = workQueue.createQueue(threads, "QtNotifications");
+        List<Notification> left = new ArrayList<>();
+        try {
+            Files.createDirectories(outbox);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(outbox, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    Notification n = read(file);
+                    if (n != null) left.add(n);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.atSevere().withCause(e).log("qtcodereview: notification outbox %s cannot be read", outbox);
+        }
+
+        Collections.sort(left, (a, b) -> a.file.getFileName().compareTo(b.file.getFileName()));
+        for (Notification n : left) {
+            qtMetrics.notificationOutboxDepth.incrementAndGet();
+            executor.execute(() -> run(n));
+        }
+        if (!left.isEmpty()) {
+            logger.atInfo().log("qtcodereview: %d notifications left in the outbox are sent again", left.size());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /** Returns true if the emails of a build are sent as one digest per recipient. */
+    public boolean isDigestEnabled() {
+        return digest;
+    }
+
+    /**
+     * Sends a notification of a change, right away or through the outbox.
+     * A notification that cannot be written to the outbox is sent right away.
+     * @param type Type of the notification.
+     * @param projectKey Project of the change.
+     * @param changeId The change.
+     * @param accountId User the notification is from.
+     * @param message Message of a build failed email, otherwise null.
+     */
+    public void add(Type type, Project.NameKey projectKey, Change.Id changeId,
+                    Account.Id accountId, String message) {
+        Notification n = new Notification();
+        n.type = type;
+        n.project = projectKey.get();
+        n.change = changeId.get();
+        n.account = accountId.get();
+        n.message = message;
+        enqueue(n);
+    }
+
+    /**
+     * Sends the digest emails of a build, right away or through the outbox.
+     * @param passed True if the changes were merged, false if they were rejected.
+     * @param branch Destination branch of the build.
+     * @param build Name of the build.
+     * @param changeIds Changes of the build.
+     * @param accountId User the emails are from.
+     * @param message Message of a failed build, otherwise null.
+     */
+    public void addDigest(boolean passed, Branch.NameKey branch, String build, List<Change.Id> changeIds,
+                          Account.Id accountId, String message) {
+        if (changeIds.isEmpty()) return;
+
+        Notification n = new Notification();
+        n.type = passed ? Type.MERGED_DIGEST : Type.BUILD_FAILED_DIGEST;
+        n.project = branch.getParentKey().get();
+        n.change = changeIds.get(0).get();
+        n.account = accountId.get();
+        n.message = message;
+        n.branch = branch.get();
+        n.build = build;
+        n.changes = new ArrayList<>();
+        for (Change.Id changeId : changeIds) {
+            n.changes.add(changeId.get());
+        }
+        enqueue(n);
+    }
+
+    private void enqueue(Notification n) {
+        n.queued = System.currentTimeMillis();
+
+        ScheduledExecutorService executor = this.executor;
+        if (executor != null) {
+            n.file = outbox.resolve(String.format("%013d-%06d%s", n.queued,
+                                                  sequence.incrementAndGet() % 1000000, SUFFIX));
+            try {
+                write(n);
+                qtMetrics.notificationOutboxDepth.incrementAndGet();
+                executor.execute(() -> run(n));
+                return;
+            } catch (IOException e) {
+                logger.atSevere().withCause(e).log("qtcodereview: notification outbox write failed, sending %s of change %d now",
+                                                   n.type, n.change);
+            } catch (RejectedExecutionException e) {
+                // the outbox was stopped after the executor was read
+                logger.atWarning().log("qtcodereview: notification outbox stopped, sending %s of change %d now",
+                                       n.type, n.change);
+                remove(n);
+            }
+        }
+
+        try {
+            deliver(n);
+        } catch (Exception e) {
+            logger.atWarning().log("qtcodereview: staging-approve %s not sent for change %d %s", n.type, n.change, e);
+        }
+    }
+
+    private void run(Notification n) {
+        try (ManualRequestContext ctx = requestContext.openAs(new Account.Id(n.account))) {
+            deliver(n);
+            qtMetrics.notificationLatency.record(System.currentTimeMillis() - n.queued, MILLISECONDS);
+            remove(n);
+        } catch (Exception e) {
+            n.attempts++;
+            ScheduledExecutorService executor = this.executor;
+            if (n.attempts >= attempts || executor == null) {
+                if (executor != null) {
+                    logger.atSevere().withCause(e).log("qtcodereview: %s of change %d dropped after %d attempts",
+                                                       n.type, n.change, n.attempts);
+                    qtMetrics.notificationFailures.increment();
+                    remove(n);
+                }
+                return;
+            }
+            long delay = Math.min(RETRY_DELAY << Math.min(n.attempts - 1, 20), MAX_RETRY_DELAY);
+            logger.atWarning().log("qtcodereview: %s of change %d failed, retry in %d ms: %s",
+                                   n.type, n.change, delay, e);
+            try {
+                write(n);
+            } catch (IOException ioe) {
+                logger.atWarning().withCause(ioe).log("qtcodereview: notification outbox update failed");
+            }
+            executor.schedule(() -> run(n), delay, MILLISECONDS);
+        }
+    }
+
+    private void deliver(Notification n) throws Exception {
+        Project.NameKey projectKey = new Project.NameKey(n.project);
+        Change.Id changeId = new Change.Id(n.change);
+        Account.Id accountId = new Account.Id(n.account);
+
+        try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.NOTIFY)) {
+            send(n, projectKey, changeId, accountId);
+        }
+    }
+
+    private void send(Notification n, Project.NameKey projectKey, Change.Id changeId,
+                      Account.Id accountId) throws Exception {
+        switch (n.type) {
+            case MERGED_EVENT:
+                ChangeData cd = changeDataFactory.create(dbProvider.get(), projectKey, changeId);
+                PatchSet ps = cd.currentPatchSet();
+                changeMerged.fire(cd.change(), ps, userFactory.create(accountId).state(),
+                                  ps.getRevision().get(), new Timestamp(n.queued));
+                break;
+            case MERGED_EMAIL:
+                MergedSender mcm = mergedSenderFactory.create(projectKey, changeId);
+                mcm.setFrom(accountId);
+                mcm.send();
+                break;
+            case BUILD_FAILED_EMAIL:
+                QtBuildFailedSender cm = qtBuildFailedSenderFactory.create(projectKey, changeId);
+                cm.setFrom(accountId);
+                cm.setChangeMessage(n.message, new Timestamp(n.queued));
+                cm.send();
+                break;
+            case MERGED_DIGEST:
+            case BUILD_FAILED_DIGEST:
+                List<Change.Id> changeIds = new ArrayList<>();
+                for (int id : n.changes) {
+                    changeIds.add(new Change.Id(id));
+                }
+                Set<Account.Id> delivered = new HashSet<>();
+                if (n.delivered != null) {
+                    for (int id : n.delivered) {
+                        delivered.add(new Account.Id(id));
+                    }
+                }
+                try {
+                    qtBuildDigest.send(new Branch.NameKey(projectKey, n.branch), n.build,
+                                       n.type == Type.MERGED_DIGEST, changeIds, accountId, n.message, delivered);
+                } finally {
+                    // written to the outbox with the notification when it is retried
+                    n.delivered = new ArrayList<>();
+                    for (Account.Id id : delivered) {
+                        n.delivered.add(id.get());
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reads a notification left in the outbox. A file that cannot be read is
+     * moved aside, so that it does not keep the others from being sent.
+     * @return The notification, or null if the file cannot be read.
+     */
+    private Notification read(Path file) {
+        try {
+            Notification n = gson.fromJson(new String(Files.readAllBytes(file), UTF_8), Notification.class);
+            if (n == null || n.type == null) throw new JsonParseException("no notification");
+            n.file = file;
+            return n;
+        } catch (IOException | RuntimeException e) {
+            Path bad = file.resolveSibling(file.getFileName() + BAD_SUFFIX);
+            logger.atSevere().withCause(e).log("qtcodereview: notification %s cannot be read, moved to %s",
+                                               file, bad);
+            try {
+                Files.move(file, bad, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException moveError) {
+                logger.atSevere().withCause(moveError).log("qtcodereview: notification %s cannot be moved", file);
+            }
+            return null;
+        }
+    }
+
+    private void write(Notification n) throws IOException {
+        Path tmp = n.file.resolveSibling(n.file.getFileName() + ".tmp");
+        Files.write(tmp, gson.toJson(n).getBytes(UTF_8));
+        Files.move(tmp, n.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void remove(Notification n) {
+        qtMetrics.notificationOutboxDepth.decrementAndGet();
+        try {
+            Files.deleteIfExists(n.file);
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("qtcodereview: notification %s cannot be removed", n.file);
+        }
+    }
+}
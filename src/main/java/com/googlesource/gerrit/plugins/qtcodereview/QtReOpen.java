@@ -44,6 +44,7 @@ class QtReOpen extends RetryingRestModifyView<ChangeResource, RestoreInput, Chan
     private final PatchSetUtil psUtil;
     private final ProjectCache projectCache;
     private final QtChangeUpdateOp.Factory qtUpdateFactory;
+    private final QtMetrics qtMetrics;
 
     @Inject
     QtReOpen(Provider<ReviewDb> dbProvider,
@@ -51,13 +52,15 @@ class QtReOpen extends RetryingRestModifyView<ChangeResource, RestoreInput, Chan
              PatchSetUtil psUtil,
              RetryHelper retryHelper,
              ProjectCache projectCache,
-             QtChangeUpdateOp.Factory qtUpdateFactory) {
+             QtChangeUpdateOp.Factory qtUpdateFactory,
+             QtMetrics qtMetrics) {
       super(retryHelper);
       this.dbProvider = dbProvider;
       this.json = json;
       this.psUtil = psUtil;
       this.projectCache = projectCache;
       this.qtUpdateFactory = qtUpdateFactory;
+      this.qtMetrics = qtMetrics;
     }
 
 
@@ -68,30 +71,33 @@ class QtReOpen extends RetryingRestModifyView<ChangeResource, RestoreInput, Chan
                                    throws RestApiException, UpdateException,
                                           OrmException, PermissionBackendException,
                                           IOException {
-        Change change = rsrc.getChange();
-        logger.atInfo().log("qtcodereview: reopen %s", change);
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.REOPEN)) {
+            Change change = rsrc.getChange();
+            logger.atInfo().log("qtcodereview: reopen %s", change);
 
-        // Not allowed to restore if the current patch set is locked.
-        psUtil.checkPatchSetNotLocked(rsrc.getNotes());
+            // Not allowed to restore if the current patch set is locked.
+            psUtil.checkPatchSetNotLocked(rsrc.getNotes());
 
-        // Use same permission as Restore. Note that Abandon permission grants the
-        // Restore if the user also has push permission on the change’s destination ref.
-        rsrc.permissions().database(dbProvider).check(ChangePermission.RESTORE);
-        projectCache.checkedGet(rsrc.getProject()).checkStatePermitsWrite();
+            // Use same permission as Restore. Note that Abandon permission grants the
+            // Restore if the user also has push permission on the change’s destination ref.
+            rsrc.permissions().database(dbProvider).check(ChangePermission.RESTORE);
+            projectCache.checkedGet(rsrc.getProject()).checkStatePermitsWrite();
 
-        if (change.getStatus() != Change.Status.DEFERRED) {
-            logger.atSevere().log("qtcodereview: reopen %s status wrong %s", change, change.getStatus());
-            throw new ResourceConflictException("change is " + ChangeUtil.status(change));
-        }
+            if (change.getStatus() != Change.Status.DEFERRED) {
+                logger.atSevere().log("qtcodereview: reopen %s status wrong %s", change, change.getStatus());
+                throw new ResourceConflictException("change is " + ChangeUtil.status(change));
+            }
 
-        QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.NEW, Change.Status.DEFERRED, "Reopened", input.message, QtUtil.TAG_REOPENED, null);
-        try (BatchUpdate u =  updateFactory.create(dbProvider.get(), change.getProject(), rsrc.getUser(), TimeUtil.nowTs())) {
-            u.addOp(rsrc.getId(), op).execute();
-        }
+            QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.NEW, Change.Status.DEFERRED, "Reopened", input.message, QtUtil.TAG_REOPENED, null);
+            try (BatchUpdate u =  updateFactory.create(dbProvider.get(), change.getProject(), rsrc.getUser(), TimeUtil.nowTs())) {
+                u.addOp(rsrc.getId(), op).execute();
+            }
 
-        change = op.getChange();
-        logger.atInfo().log("qtcodereview: reopened  %s", change);
-        return json.noOptions().format(change);
+            change = op.getChange();
+            logger.atInfo().log("qtcodereview: reopened  %s", change);
+            timer.succeeded();
+            return json.noOptions().format(change);
+        }
     }
 
     @Override
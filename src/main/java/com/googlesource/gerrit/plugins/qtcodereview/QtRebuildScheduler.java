@@ -0,0 +1,219 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Coalesces staging rebuilds. If a rebuild delay is configured, a rebuild
+ * requested for a branch is run only after the delay, and all the rebuilds
+ * requested for the branch meanwhile are merged into it. The rebuild reads
+ * the change statuses when it starts, so it covers all of them.
+ *
+ * Without a delay the callers rebuild the staging ref right away.
+ *
+ * A pending rebuild must be done before the staging ref is used for a new
+ * build, see cancel(). The rebuilds still pending when the plugin is stopped
+ * are run right away.
+ */
+@Singleton
+public class QtRebuildScheduler implements LifecycleListener {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final WorkQueue workQueue;
+    private final OneOffRequestContext requestContext;
+    private final IdentifiedUser.GenericFactory userFactory;
+    private final QtGitSession.Factory qtGitSessionFactory;
+    private final QtBranchLock qtBranchLock;
+    private final QtUtil qtUtil;
+    private final QtMetrics qtMetrics;
+    private final long delay;
+
+    // guarded by this, the pending rebuild of each branch by its refs/heads/ name
+    private final Map<Branch.NameKey, Pending> pending = new HashMap<>();
+    // guarded by this, the number of rebuilds taken and not yet done
+    private int running;
+    private ScheduledExecutorService executor;
+
+    private static class Pending {
+        final Account.Id accountId;
+
+        Pending(Account.Id accountId) {
+            this.accountId = accountId;
+        }
+    }
+
+    @Inject
+    QtRebuildScheduler(WorkQueue workQueue,
+                       OneOffRequestContext requestContext,
+                       IdentifiedUser.GenericFactory userFactory,
+                       QtGitSession.Factory qtGitSessionFactory,
+                       QtBranchLock qtBranchLock,
+                       QtUtil qtUtil,
+                       QtMetrics qtMetrics,
+                       PluginConfigFactory cfgFactory,
+                       @PluginName String pluginName) {
+        this.workQueue = workQueue;
+        this.requestContext = requestContext;
+        this.userFactory = userFactory;
+        this.qtGitSessionFactory = qtGitSessionFactory;
+        this.qtBranchLock = qtBranchLock;
+        this.qtUtil = qtUtil;
+        this.qtMetrics = qtMetrics;
+        this.delay = Math.max(0, cfgFactory.getFromGerritConfig(pluginName).getLong("stagingRebuildDelay", 0));
+    }
+
+    @Override
+    public synchronized void start() {
+        if (delay > 0) {
+            executor = workQueue.createQueue(1, "QtStagingRebuild");
+        }
+    }
+
+    @Override
+    public void stop() {
+        Map<Branch.NameKey, Pending> left;
+        synchronized (this) {
+            if (executor == null) return;
+            executor.shutdownNow();
+            executor = null;
+            left = new HashMap<>(pending);
+        }
+
+        // not under the monitor, the rebuilds take the branch locks
+        for (Map.Entry<Branch.NameKey, Pending> rebuild : left.entrySet()) {
+            logger.atInfo().log("qtcodereview: pending staging rebuild of %s run on stop", rebuild.getKey());
+            run(rebuild.getKey(), rebuild.getValue());
+        }
+    }
+
+    /**
+     * Requests a rebuild of the staging ref of a branch. If a rebuild of the
+     * branch is pending already, the request is merged into it.
+     * @param branch Branch, its staging ref or its short name.
+     * @param user User requesting the rebuild, the rebuild is run as this user.
+     * @return False if rebuilds are not delayed, the caller must then rebuild
+     *         the staging ref itself.
+     */
+    public synchronized boolean schedule(Branch.NameKey branch, IdentifiedUser user) {
+        if (executor == null) return false;
+
+        Branch.NameKey key = getKey(branch);
+        if (pending.containsKey(key)) {
+            qtMetrics.stagingRebuildsCoalesced.increment();
+            logger.atInfo().log("qtcodereview: staging rebuild of %s merged into the pending one", key);
+            return true;
+        }
+
+        Pending rebuild = new Pending(user.getAccountId());
+        pending.put(key, rebuild);
+        executor.schedule(() -> run(key, rebuild), delay, MILLISECONDS);
+        logger.atInfo().log("qtcodereview: staging rebuild of %s scheduled in %d ms", key, delay);
+        return true;
+    }
+
+    /**
+     * Drops the pending rebuild of a branch. Called with the branch lock held
+     * before the staging ref is rebuilt right away, which covers the pending
+     * rebuild.
+     * @param branch Branch, its staging ref or its short name.
+     * @return True if a rebuild was pending. The staging ref may then still
+     *         have changes that are not staged anymore, and must be rebuilt
+     *         before it is used.
+     */
+    public synchronized boolean cancel(Branch.NameKey branch) {
+        if (pending.remove(getKey(branch)) != null) {
+            qtMetrics.stagingRebuildsCoalesced.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits until no rebuild is pending or running.
+     * @param timeout Longest time to wait, in milliseconds.
+     * @return False if the rebuilds were not done in time.
+     */
+    synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!pending.isEmpty() || running > 0) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    private synchronized boolean take(Branch.NameKey key, Pending rebuild) {
+        if (!pending.remove(key, rebuild)) return false;
+        running++;
+        return true;
+    }
+
+    private synchronized void done() {
+        running--;
+        notifyAll();
+    }
+
+    private void run(Branch.NameKey key, Pending rebuild) {
+        Project.NameKey projectKey = key.getParentKey();
+        Branch.NameKey stagingBranchKey = QtUtil.getStagingBranch(key);
+        Branch.NameKey destBranchShortKey = QtUtil.getNameKeyShort(projectKey.get(), QtUtil.R_HEADS, key.get());
+
+        // the rebuild is taken under the branch lock, so that a new build either
+        // finds it still pending or the staging ref already rebuilt
+        try (QtBranchLock.Held lock = qtBranchLock.lock(key)) {
+            if (!take(key, rebuild)) return; // done by an immediate rebuild
+            try {
+                rebuild(projectKey, stagingBranchKey, destBranchShortKey, rebuild);
+            } finally {
+                done();
+            }
+        }
+    }
+
+    private void rebuild(Project.NameKey projectKey,
+                         Branch.NameKey stagingBranchKey,
+                         Branch.NameKey destBranchShortKey,
+                         Pending rebuild) {
+        try (ManualRequestContext ctx = requestContext.openAs(rebuild.accountId);
+             QtGitSession session = qtGitSessionFactory.open(projectKey)) {
+            if (session.getRepository().resolve(stagingBranchKey.get()) == null) return;
+
+            qtUtil.rebuildStagingBranch(session, userFactory.create(rebuild.accountId),
+                                        stagingBranchKey, destBranchShortKey);
+            logger.atInfo().log("qtcodereview: scheduled staging rebuild done for %s", stagingBranchKey);
+        } catch (Exception e) {
+            logger.atSevere().withCause(e).log("qtcodereview: scheduled staging rebuild of %s failed",
+                                               stagingBranchKey);
+        }
+    }
+
+    private static Branch.NameKey getKey(Branch.NameKey branch) {
+        String name = branch.get();
+        if (name.startsWith(QtUtil.R_STAGING)) {
+            name = name.substring(QtUtil.R_STAGING.length());
+        }
+        return QtUtil.getNameKeyLong(branch.getParentKey().get(), QtUtil.R_HEADS, name);
+    }
+}
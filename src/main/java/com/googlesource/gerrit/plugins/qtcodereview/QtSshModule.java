@@ -17,5 +17,6 @@ class QtSshModule extends PluginCommandModule {
         command(QtCommandListStaging.class);
         command(QtCommandRebuildStaging.class);
         command(QtCommandStage.class);
+        command(QtCommandStagingQueue.class);
     }
 }
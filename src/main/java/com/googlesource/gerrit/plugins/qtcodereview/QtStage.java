@@ -23,13 +23,9 @@ import com.google.gerrit.reviewdb.client.RevId;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
-import com.google.gerrit.server.ProjectUtil;
 import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.change.RevisionResource;
 import com.google.gerrit.server.config.GerritServerConfig;
-import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
-import com.google.gerrit.server.git.CodeReviewCommit;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.permissions.ChangePermission;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
@@ -38,7 +34,6 @@ import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gerrit.server.project.NoSuchRefException;
-import com.google.gerrit.server.submit.IntegrationException;
 import com.google.gerrit.server.submit.MergeOp;
 import com.google.gerrit.server.update.UpdateException;
 import com.google.gwtorm.server.OrmException;
@@ -47,13 +42,13 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.lib.RefUpdate.Result;
 
 @Singleton
 public class QtStage implements RestModifyView<RevisionResource, SubmitInput>,
@@ -65,43 +60,46 @@ public class QtStage implements RestModifyView<RevisionResource, SubmitInput>,
 
     public static class Output {
         transient Change change;
+        /** Id of the queued request if staging is asynchronous, see staging-queue. */
+        Long request;
         private Output(Change c) {
             change = c;
         }
+        private Output(Change c, long request) {
+            this(c);
+            this.request = request;
+        }
     }
 
     private final Provider<ReviewDb> dbProvider;
-    private final GitRepositoryManager repoManager;
+    private final QtGitSession.Factory qtGitSessionFactory;
     private final PermissionBackend permissionBackend;
     private final ChangeData.Factory changeDataFactory;
     private final ProjectCache projectCache;
-    private final GitReferenceUpdated referenceUpdated;
-    private final QtCherryPickPatch qtCherryPickPatch;
     private final QtUtil qtUtil;
+    private final QtBranchLock qtBranchLock;
+    private final QtStagingQueue qtStagingQueue;
+    private final QtMetrics qtMetrics;
 
     private final AccountResolver accountResolver;
     private final String label;
     private final ParameterizedString titlePattern;
 
-    private Change change;
-    private Project.NameKey projectKey;
-    private Branch.NameKey destBranchKey;
-    private Branch.NameKey stagingBranchKey;
-
     @Inject
     QtStage(Provider<ReviewDb> dbProvider,
-            GitRepositoryManager repoManager,
+            QtGitSession.Factory qtGitSessionFactory,
             PermissionBackend permissionBackend,
             ChangeData.Factory changeDataFactory,
             AccountResolver accountResolver,
             @GerritServerConfig Config cfg,
             ProjectCache projectCache,
-            GitReferenceUpdated referenceUpdated,
-            QtCherryPickPatch qtCherryPickPatch,
-            QtUtil qtUtil) {
+            QtUtil qtUtil,
+            QtBranchLock qtBranchLock,
+            QtStagingQueue qtStagingQueue,
+            QtMetrics qtMetrics) {
 
         this.dbProvider = dbProvider;
-        this.repoManager = repoManager;
+        this.qtGitSessionFactory = qtGitSessionFactory;
         this.permissionBackend = permissionBackend;
         this.changeDataFactory = changeDataFactory;
         this.accountResolver = accountResolver;
@@ -111,9 +109,10 @@ public class QtStage implements RestModifyView<RevisionResource, SubmitInput>,
                 MoreObjects.firstNonNull(
                     cfg.getString("change", null, "stageTooltip"), DEFAULT_TOOLTIP));
         this.projectCache = projectCache;
-        this.referenceUpdated = referenceUpdated;
-        this.qtCherryPickPatch = qtCherryPickPatch;
         this.qtUtil = qtUtil;
+        this.qtBranchLock = qtBranchLock;
+        this.qtStagingQueue = qtStagingQueue;
+        this.qtMetrics = qtMetrics;
     }
 
     @Override
@@ -124,53 +123,49 @@ public class QtStage implements RestModifyView<RevisionResource, SubmitInput>,
         logger.atInfo().log("qtcodereview: stage %s", rsrc.getChange().toString());
 
         IdentifiedUser submitter = rsrc.getUser().asIdentifiedUser();
-        change = rsrc.getChange();
-        projectKey = rsrc.getProject();
-        destBranchKey = change.getDest();
-        stagingBranchKey = QtUtil.getStagingBranch(destBranchKey);
 
         rsrc.permissions().check(ChangePermission.QT_STAGE);
 
         projectCache.checkedGet(rsrc.getProject()).checkStatePermitsWrite();
 
-        return new Output(changeToStaging(rsrc, submitter, input));
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.STAGE)) {
+            Output output = changeToStaging(rsrc, submitter, input);
+            timer.succeeded();
+            return output;
+        }
     }
 
-    private Change changeToStaging(RevisionResource rsrc, IdentifiedUser submitter, SubmitInput input)
+    private Output changeToStaging(RevisionResource rsrc, IdentifiedUser submitter, SubmitInput input)
         throws OrmException, RestApiException, IOException, UpdateException, ConfigInvalidException,
             PermissionBackendException {
         logger.atInfo().log("qtcodereview: changeToStaging starts");
 
-        if (change.getStatus() != Change.Status.NEW) {
-            logger.atSevere().log("qtcodereview: stage: change %s status wrong: %s",
-                                  change, change.getStatus());
-            throw new ResourceConflictException("Change is " + change.getStatus());
-        } else if (!ProjectUtil.branchExists(repoManager, change.getDest())) {
-            logger.atSevere().log("qtcodereview: stage: change %s destination branch \"%s\" not found",
-                                  change, change.getDest().get());
-            throw new ResourceConflictException(String.format("Destination branch \"%s\" not found.",
-                                                              change.getDest().get()));
-        } else if (!rsrc.getPatchSet().getId().equals(change.currentPatchSetId())) {
-            logger.atSevere().log("qtcodereview: stage: change %s revision %s is not current revision",
-                                  change, rsrc.getPatchSet().getRevision().get());
-            throw new ResourceConflictException(String.format("Revision %s is not current.",
-                                                              rsrc.getPatchSet().getRevision().get()));
-        }
+        Change change = rsrc.getChange();
+        Project.NameKey projectKey = rsrc.getProject();
+        Branch.NameKey destBranchKey = change.getDest();
+        Branch.NameKey stagingBranchKey = QtUtil.getStagingBranch(destBranchKey);
 
-        Repository git = null;
-        ObjectId destId = null;
         ObjectId sourceId = null;
         ChangeData changeData;
 
-        try {
-            git = repoManager.openRepository(projectKey);
-            // Check if staging branch exists. Create the staging branch if it does not exist.
-            if (!ProjectUtil.branchExists(repoManager, stagingBranchKey)) {
-                Result result = QtUtil.createStagingBranch(git, destBranchKey);
-                if (result == null) throw new NoSuchRefException("Cannot create staging ref: " + stagingBranchKey.get());
+        try (QtGitSession session = qtGitSessionFactory.open(projectKey)) {
+            Repository git = session.getRepository();
+
+            if (change.getStatus() != Change.Status.NEW) {
+                logger.atSevere().log("qtcodereview: stage: change %s status wrong: %s",
+                                      change, change.getStatus());
+                throw new ResourceConflictException("Change is " + change.getStatus());
+            } else if (!QtUtil.branchExists(git, change.getDest())) {
+                logger.atSevere().log("qtcodereview: stage: change %s destination branch \"%s\" not found",
+                                      change, change.getDest().get());
+                throw new ResourceConflictException(String.format("Destination branch \"%s\" not found.",
+                                                                  change.getDest().get()));
+            } else if (!rsrc.getPatchSet().getId().equals(change.currentPatchSetId())) {
+                logger.atSevere().log("qtcodereview: stage: change %s revision %s is not current revision",
+                                      change, rsrc.getPatchSet().getRevision().get());
+                throw new ResourceConflictException(String.format("Revision %s is not current.",
+                                                                  rsrc.getPatchSet().getRevision().get()));
             }
-            destId = git.resolve(stagingBranchKey.get());
-            if (destId == null) throw new NoSuchRefException("Invalid Revision: " + stagingBranchKey.get());
 
             sourceId = git.resolve(rsrc.getPatchSet().getRevision().get());
             if (sourceId == null) throw new NoSuchRefException("Invalid Revision: " + rsrc.getPatchSet().getRevision().get());
@@ -178,36 +173,37 @@ public class QtStage implements RestModifyView<RevisionResource, SubmitInput>,
             changeData = changeDataFactory.create(dbProvider.get(), change);
             MergeOp.checkSubmitRule(changeData, false);
 
-            CodeReviewCommit commit = qtCherryPickPatch.cherryPickPatch(changeData,
-                                                                        projectKey,
-                                                                        sourceId,
-                                                                        destId,
-                                                                        false, // allowFastForward
-                                                                        Change.Status.STAGED,
-                                                                        "Staged for CI", // defaultMessage
-                                                                        null, // inputMessage
-                                                                        QtUtil.TAG_CI  // tag
-                                                                        );
-            Result result = qtUtil.updateRef(git, stagingBranchKey.get(), commit.toObjectId(), false);
-            referenceUpdated.fire(projectKey, stagingBranchKey.get(), destId, commit.toObjectId(), submitter.state());
-
-        } catch (IntegrationException e) {
-            logger.atInfo().log("qtcodereview: stage merge error %s", e);
-            throw new ResourceConflictException(e.getMessage());
-        } catch (NoSuchRefException e) {
+            if (qtStagingQueue.isEnabled()) {
+                QtStagingQueue.Request request = qtStagingQueue.stage(submitter.getAccountId(), change);
+                return new Output(change, request.getId());
+            }
+
+            try (QtBranchLock.Held lock = qtBranchLock.lock(destBranchKey)) {
+                // another request may have staged the change while this one waited for the lock
+                Change current = changeData.reloadChange();
+                if (current.getStatus() != Change.Status.NEW) {
+                    logger.atSevere().log("qtcodereview: stage: change %s status wrong: %s",
+                                          current, current.getStatus());
+                    throw new ResourceConflictException("Change is " + current.getStatus());
+                }
+
+                Map<Change.Id, String> errors = qtUtil.stageChanges(session, submitter, destBranchKey,
+                                                                    Collections.singletonList(changeData));
+                if (errors.containsKey(change.getId())) {
+                    throw new ResourceConflictException(errors.get(change.getId()));
+                }
+            }
+
+        } catch (NoSuchRefException | QtUtil.StagingUpdateException e) {
             logger.atSevere().log("qtcodereview: stage error %s", e);
             throw new ResourceConflictException(e.getMessage());
-        } finally {
-            if (git != null) {
-                git.close();
-            }
         }
 
         change = changeData.reloadChange();
         switch (change.getStatus()) {
           case STAGED:
               logger.atInfo().log("qtcodereview: changeToStaging %s added to %s", change, stagingBranchKey);
-              return change; // this doesn't return data to client, if needed use ChangeJson to convert it
+              return new Output(change); // this doesn't return data to client, if needed use ChangeJson to convert it
           default:
               throw new ResourceConflictException("Change is unexpectedly " + change.getStatus());
         }
@@ -0,0 +1,231 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.IdString;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.extensions.restapi.TopLevelResource;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.change.ChangeResource;
+import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.permissions.ChangePermission;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.project.BranchResource;
+import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.restapi.change.ChangesCollection;
+import com.google.gerrit.server.restapi.change.Revisions;
+import com.google.gerrit.server.submit.MergeOp;
+import com.google.gerrit.server.update.UpdateException;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stages a list of changes of a branch at once. The changes are picked on
+ * top of the staging ref in the given order, and the staging ref is updated
+ * and the changes are moved to staged status only once for the whole list.
+ * A change that cannot be staged is skipped and reported in the result, the
+ * rest of the list is staged. If asynchronous staging is enabled, the
+ * checked changes are queued and the result holds their request ids.
+ */
+@Singleton
+public class QtStageBatch implements RestModifyView<BranchResource, QtStageBatch.Input> {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    public static class Input {
+        /**
+         * Changes to stage, in order. Each item is a change id, optionally
+         * followed by a comma and a revision, e.g. "123" or "123,2". The
+         * current revision is staged by default.
+         */
+        public List<String> changes;
+    }
+
+    public static class StageResult {
+        public boolean staged;
+        public String error;
+        /** Id of the queued request if staging is asynchronous, see staging-queue. */
+        public Long request;
+
+        private StageResult(boolean staged, String error) {
+            this.staged = staged;
+            this.error = error;
+        }
+
+        private StageResult(boolean staged, String error, long request) {
+            this(staged, error);
+            this.request = request;
+        }
+    }
+
+    private final Provider<ReviewDb> dbProvider;
+    private final QtGitSession.Factory qtGitSessionFactory;
+    private final ChangesCollection changes;
+    private final Revisions revisions;
+    private final ChangeData.Factory changeDataFactory;
+    private final ProjectCache projectCache;
+    private final QtUtil qtUtil;
+    private final QtBranchLock qtBranchLock;
+    private final QtStagingQueue qtStagingQueue;
+
+    @Inject
+    QtStageBatch(Provider<ReviewDb> dbProvider,
+                 QtGitSession.Factory qtGitSessionFactory,
+                 ChangesCollection changes,
+                 Revisions revisions,
+                 ChangeData.Factory changeDataFactory,
+                 ProjectCache projectCache,
+                 QtUtil qtUtil,
+                 QtBranchLock qtBranchLock,
+                 QtStagingQueue qtStagingQueue) {
+        this.dbProvider = dbProvider;
+        this.qtGitSessionFactory = qtGitSessionFactory;
+        this.changes = changes;
+        this.revisions = revisions;
+        this.changeDataFactory = changeDataFactory;
+        this.projectCache = projectCache;
+        this.qtUtil = qtUtil;
+        this.qtBranchLock = qtBranchLock;
+        this.qtStagingQueue = qtStagingQueue;
+    }
+
+    @Override
+    public Map<String, StageResult> apply(BranchResource rsrc, Input input)
+        throws RestApiException, IOException, OrmException, PermissionBackendException, UpdateException {
+
+        if (input == null || input.changes == null || input.changes.isEmpty()) {
+            throw new BadRequestException("changes must be given");
+        }
+
+        IdentifiedUser submitter = rsrc.getUser().asIdentifiedUser();
+        Project.NameKey projectKey = rsrc.getNameKey();
+        Branch.NameKey destBranchKey = rsrc.getBranchKey();
+
+        logger.atInfo().log("qtcodereview: stage batch of %d changes to %s", input.changes.size(), destBranchKey);
+
+        projectCache.checkedGet(projectKey).checkStatePermitsWrite();
+
+        Map<String, StageResult> results = new LinkedHashMap<>();
+        Map<Change.Id, String> items = new LinkedHashMap<>();
+        List<ChangeData> candidates = new ArrayList<>();
+
+        // check all the changes first, the results are kept in input order
+        for (String item : input.changes) {
+            try {
+                RevisionResource revision = parseRevision(item);
+                ChangeData changeData = checkStageable(revision, destBranchKey);
+                if (items.containsKey(changeData.getId())) {
+                    throw new ResourceConflictException("Change is listed more than once.");
+                }
+                items.put(changeData.getId(), item);
+                candidates.add(changeData);
+                results.put(item, null);
+            } catch (RestApiException e) {
+                logger.atInfo().log("qtcodereview: stage batch skipped %s: %s", item, e.getMessage());
+                results.put(item, new StageResult(false, e.getMessage()));
+            }
+        }
+        if (candidates.isEmpty()) return results;
+
+        if (qtStagingQueue.isEnabled()) {
+            for (ChangeData cd : candidates) {
+                QtStagingQueue.Request request = qtStagingQueue.stage(submitter.getAccountId(), cd.change());
+                results.put(items.get(cd.getId()), new StageResult(false, null, request.getId()));
+            }
+            return results;
+        }
+
+        List<ChangeData> stageable = new ArrayList<>();
+        Map<Change.Id, String> errors;
+        try (QtBranchLock.Held lock = qtBranchLock.lock(destBranchKey);
+             QtGitSession session = qtGitSessionFactory.open(projectKey)) {
+            // other requests may have staged or updated the changes while this one waited for the lock
+            for (ChangeData cd : candidates) {
+                ChangeData current = changeDataFactory.create(dbProvider.get(), projectKey, cd.getId());
+                try {
+                    checkUnchanged(cd, current);
+                    stageable.add(current);
+                } catch (ResourceConflictException e) {
+                    logger.atInfo().log("qtcodereview: stage batch skipped %s: %s", items.get(cd.getId()), e.getMessage());
+                    results.put(items.get(cd.getId()), new StageResult(false, e.getMessage()));
+                }
+            }
+            if (stageable.isEmpty()) return results;
+
+            errors = qtUtil.stageChanges(session, submitter, destBranchKey, stageable);
+        } catch (NoSuchRefException | QtUtil.StagingUpdateException e) {
+            logger.atSevere().log("qtcodereview: stage batch error %s", e);
+            throw new ResourceConflictException(e.getMessage());
+        }
+
+        for (ChangeData cd : stageable) {
+            String error = errors.get(cd.getId());
+            results.put(items.get(cd.getId()), new StageResult(error == null, error));
+        }
+        logger.atInfo().log("qtcodereview: stage batch added %d changes to %s",
+                            stageable.size() - errors.size(), destBranchKey);
+        return results;
+    }
+
+    private RevisionResource parseRevision(String item)
+        throws RestApiException, OrmException, IOException, PermissionBackendException {
+        int separator = item.lastIndexOf(',');
+        String changeId = separator < 0 ? item : item.substring(0, separator);
+        String revisionId = separator < 0 ? "current" : item.substring(separator + 1);
+
+        ChangeResource change = changes.parse(TopLevelResource.INSTANCE, IdString.fromDecoded(changeId.trim()));
+        return revisions.parse(change, IdString.fromDecoded(revisionId.trim()));
+    }
+
+    private ChangeData checkStageable(RevisionResource rsrc, Branch.NameKey destBranchKey)
+        throws RestApiException, OrmException, PermissionBackendException {
+        Change change = rsrc.getChange();
+
+        rsrc.permissions().check(ChangePermission.QT_STAGE);
+
+        if (!change.getDest().equals(destBranchKey)) {
+            throw new ResourceConflictException(String.format("Change is for branch \"%s\".",
+                                                              change.getDest().get()));
+        } else if (change.getStatus() != Change.Status.NEW) {
+            throw new ResourceConflictException("Change is " + change.getStatus());
+        } else if (!rsrc.getPatchSet().getId().equals(change.currentPatchSetId())) {
+            throw new ResourceConflictException(String.format("Revision %s is not current.",
+                                                              rsrc.getPatchSet().getRevision().get()));
+        }
+
+        ChangeData changeData = changeDataFactory.create(dbProvider.get(), rsrc.getNotes());
+        MergeOp.checkSubmitRule(changeData, false);
+        return changeData;
+    }
+
+    /** Checks that the change is still new and on the patch set that was checked. */
+    private static void checkUnchanged(ChangeData checked, ChangeData current)
+        throws ResourceConflictException, OrmException {
+        Change change = current.change();
+        if (change.getStatus() != Change.Status.NEW) {
+            throw new ResourceConflictException("Change is " + change.getStatus());
+        } else if (!change.currentPatchSetId().equals(checked.change().currentPatchSetId())) {
+            throw new ResourceConflictException(String.format("Revision %s is not current.",
+                                                              checked.currentPatchSet().getRevision().get()));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.query.change.ChangeData;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Layout of a staging ref, built with a single walk along the first parents
+ * from the staging head down to the destination branch.
+ *
+ * From bottom to top a staging ref consists of:
+ *   - the destination branch head
+ *   - commits of integrating changes, up to the integration head
+ *   - commits of staged changes that can be reused as is, up to the reusable head
+ *   - the rest, of which the staged changes need to be cherry-picked again
+ *
+ * If the staging ref is not based on the branch head anymore, for example
+ * after a bisected build was merged, nothing is kept and both the integrating
+ * and the staged changes are cherry-picked again on top of the branch head.
+ */
+class QtStagingLayout {
+
+    private final ObjectId integrationHead;
+    private final ObjectId reusableHead;
+    private final List<ChangeData> changesToCherryPick;
+    private final int commitCount;
+
+    private QtStagingLayout(ObjectId integrationHead,
+                            ObjectId reusableHead,
+                            List<ChangeData> changesToCherryPick,
+                            int commitCount) {
+        this.integrationHead = integrationHead;
+        this.reusableHead = reusableHead;
+        this.changesToCherryPick = changesToCherryPick;
+        this.commitCount = commitCount;
+    }
+
+    /**
+     * Walks the staging ref and classifies its commits. Only the commits which
+     * are not yet in the destination branch are walked. Commit bodies are only
+     * read for commits not in the Change-Id index yet, and are released as soon
+     * as the Change-Id is read, so the memory used stays proportional to the
+     * number of staging commits.
+     * @param revWalk RevWalk of the repository. It is reset by the call.
+     * @param changeIds Change-Id lookup of the repository.
+     * @param stagingHead Head of the staging ref.
+     * @param branchHead Head of the destination branch, the walk stops here.
+     * @param integratingChanges Changes in integrating status by Change-Id.
+     * @param stagedChanges Changes in staged status by Change-Id.
+     * @param limit Maximum number of commits to walk.
+     * @return Layout of the staging ref.
+     * @throws IOException Thrown if the commits cannot be read.
+     * @throws QtUtil.StagingLimitException Thrown if the staging ref has more
+     *         than limit commits on top of the destination branch.
+     */
+    static QtStagingLayout analyze(RevWalk revWalk,
+                                   QtChangeIdIndex.Lookup changeIds,
+                                   ObjectId stagingHead,
+                                   ObjectId branchHead,
+                                   Map<Change.Key, ChangeData> integratingChanges,
+                                   Map<Change.Key, ChangeData> stagedChanges,
+                                   int limit)
+                                   throws IOException, QtUtil.StagingLimitException {
+        // Change-Ids of the staging commits, topmost first
+        List<RevCommit> commits = new ArrayList<>();
+        List<Change.Key> keys = new ArrayList<>();
+
+        if (!stagingHead.equals(branchHead)) {
+            boolean retainBody = revWalk.isRetainBody();
+            RevFlag onStaging = revWalk.newFlag("ON_STAGING");
+            try {
+                // Flag the commits that are on staging but not in the branch.
+                // This also ends the walk if the branch has moved on its own.
+                revWalk.reset();
+                revWalk.setRetainBody(false);
+                revWalk.markStart(revWalk.parseCommit(stagingHead));
+                revWalk.markUninteresting(revWalk.parseCommit(branchHead));
+                int count = 0;
+                for (RevCommit commit : revWalk) {
+                    if (++count > limit) {
+                        throw new QtUtil.StagingLimitException(String.format(
+                            "more than %d commits between %s and %s", limit, stagingHead.name(), branchHead.name()));
+                    }
+                    commit.add(onStaging);
+                }
+                QtTrace.count(QtTrace.Count.COMMITS_WALKED, count);
+
+                RevCommit commit = revWalk.parseCommit(stagingHead);
+                while (commit != null && commit.has(onStaging)) {
+                    commits.add(commit);
+                    keys.add(getChangeKey(revWalk, changeIds, commit));
+
+                    // It can always be trusted that parent in index 0 is the correct one
+                    commit = commit.getParentCount() > 0 ? commit.getParent(0) : null;
+                }
+            } finally {
+                revWalk.disposeFlag(onStaging);
+                revWalk.setRetainBody(retainBody);
+                revWalk.reset();
+            }
+        }
+
+        RevCommit bottom = commits.isEmpty() ? null : commits.get(commits.size() - 1);
+        boolean onBranchHead = bottom == null
+            || (bottom.getParentCount() > 0 && branchHead.equals(bottom.getParent(0)));
+        if (!onBranchHead) {
+            List<ChangeData> toCherryPick = new ArrayList<>();
+            Set<Change.Key> picked = new HashSet<>();
+            for (int i = commits.size() - 1; i >= 0; i--) {
+                Change.Key key = keys.get(i);
+                ChangeData change = integratingChanges.containsKey(key)
+                    ? integratingChanges.get(key) : stagedChanges.get(key);
+                if (change != null && picked.add(key)) toCherryPick.add(change);
+            }
+            return new QtStagingLayout(branchHead, branchHead, toCherryPick, commits.size());
+        }
+
+        // Topmost commit of an integrating change, everything below it stays as is
+        int integration = commits.size();
+        for (int i = 0; i < commits.size(); i++) {
+            if (integratingChanges.containsKey(keys.get(i))) {
+                integration = i;
+                break;
+            }
+        }
+
+        // Staged commits directly on top of the integration head can be reused
+        int reusable = integration;
+        while (reusable > 0 && stagedChanges.containsKey(keys.get(reusable - 1))) {
+            reusable--;
+        }
+
+        // Remaining staged changes are picked again in the same order as in the ref
+        List<ChangeData> toCherryPick = new ArrayList<>();
+        for (int i = reusable - 1; i >= 0; i--) {
+            ChangeData change = stagedChanges.get(keys.get(i));
+            if (change != null) toCherryPick.add(change);
+        }
+
+        ObjectId integrationHead = integration < commits.size() ? commits.get(integration) : branchHead;
+        ObjectId reusableHead = reusable < commits.size() ? commits.get(reusable) : branchHead;
+        return new QtStagingLayout(integrationHead, reusableHead, toCherryPick, commits.size());
+    }
+
+    private static Change.Key getChangeKey(RevWalk revWalk,
+                                           QtChangeIdIndex.Lookup changeIds,
+                                           RevCommit commit)
+                                           throws IOException {
+        String changeId = readChangeId(revWalk, changeIds, commit);
+        if (changeId == null && commit.getParentCount() > 1) {
+            // merge commit created by the plugin, the change is in the second parent
+            changeId = readChangeId(revWalk, changeIds, commit.getParent(1));
+        }
+        return changeId == null ? null : new Change.Key(changeId);
+    }
+
+    private static String readChangeId(RevWalk revWalk, QtChangeIdIndex.Lookup changeIds, RevCommit commit)
+                                       throws IOException {
+        String changeId = changeIds.getChangeId(revWalk, commit);
+        commit.disposeBody();
+        return changeId;
+    }
+
+    /** Topmost commit of an integrating change, or the branch head if there is none. */
+    ObjectId getIntegrationHead() {
+        return integrationHead;
+    }
+
+    /** Topmost commit that can be kept when the staging ref is rebuilt. */
+    ObjectId getReusableHead() {
+        return reusableHead;
+    }
+
+    /** Staged changes to cherry-pick on top of the reusable head, in staging ref order. */
+    List<ChangeData> getChangesToCherryPick() {
+        return Collections.unmodifiableList(changesToCherryPick);
+    }
+
+    /** Number of staging commits on top of the destination branch. */
+    int getCommitCount() {
+        return commitCount;
+    }
+}
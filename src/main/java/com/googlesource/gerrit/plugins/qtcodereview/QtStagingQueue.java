@@ -0,0 +1,377 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.submit.MergeOp;
+import com.google.gerrit.server.update.BatchUpdate;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of stage and unstage requests, used when asynchronous staging is
+ * enabled. Each destination branch has its own queue which is served by one
+ * worker at a time, so the requests of a branch are processed in order.
+ * Consecutive stage requests of the same user are staged with a single
+ * cherry-pick pass and staging ref update, and consecutive unstage requests
+ * with a single rebuild of the staging ref.
+ *
+ * The queue is kept in memory only: requests that are still pending when
+ * the plugin is stopped are dropped and the changes stay in their status.
+ */
+@Singleton
+public class QtStagingQueue implements LifecycleListener {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final int DEFAULT_THREADS = 2;
+    private static final int COMPLETED_REQUESTS = 1000;
+
+    public enum Type { STAGE, UNSTAGE }
+
+    public enum State { PENDING, RUNNING, DONE, FAILED }
+
+    public static class Request {
+        private final long id;
+        private final Type type;
+        private final Branch.NameKey branch;
+        private final Account.Id accountId;
+        private final Change.Id changeId;
+        private final PatchSet.Id patchSetId;
+        private volatile State state = State.PENDING;
+        private volatile String message;
+
+        private Request(long id, Type type, Account.Id accountId, Change change) {
+            this.id = id;
+            this.type = type;
+            this.branch = change.getDest();
+            this.accountId = accountId;
+            this.changeId = change.getId();
+            this.patchSetId = change.currentPatchSetId();
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public Branch.NameKey getBranch() {
+            return branch;
+        }
+
+        public Change.Id getChangeId() {
+            return changeId;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        private boolean isCompleted() {
+            return state == State.DONE || state == State.FAILED;
+        }
+
+        private void complete(State state, String message) {
+            this.message = message;
+            this.state = state;
+        }
+    }
+
+    private final WorkQueue workQueue;
+    private final OneOffRequestContext requestContext;
+    private final IdentifiedUser.GenericFactory userFactory;
+    private final Provider<ReviewDb> dbProvider;
+    private final ChangeData.Factory changeDataFactory;
+    private final QtGitSession.Factory qtGitSessionFactory;
+    private final QtBranchLock qtBranchLock;
+    private final QtUtil qtUtil;
+    private final QtRebuildScheduler qtRebuildScheduler;
+    private final BatchUpdate.Factory updateFactory;
+    private final QtChangeUpdateOp.Factory qtUpdateFactory;
+    private final boolean enabled;
+    private final int threads;
+
+    private final AtomicLong nextId = new AtomicLong();
+    // all the fields below are guarded by this
+    private final Map<Branch.NameKey, Deque<Request>> queues = new HashMap<>();
+    private final Set<Branch.NameKey> running = new HashSet<>();
+    private final Map<Long, Request> requests = new LinkedHashMap<>();
+    private final Deque<Long> completed = new ArrayDeque<>();
+    private ScheduledExecutorService executor;
+
+    @Inject
+    QtStagingQueue(WorkQueue workQueue,
+                   OneOffRequestContext requestContext,
+                   IdentifiedUser.GenericFactory userFactory,
+                   Provider<ReviewDb> dbProvider,
+                   ChangeData.Factory changeDataFactory,
+                   QtGitSession.Factory qtGitSessionFactory,
+                   QtBranchLock qtBranchLock,
+                   QtUtil qtUtil,
+                   QtRebuildScheduler qtRebuildScheduler,
+                   BatchUpdate.Factory updateFactory,
+                   QtChangeUpdateOp.Factory qtUpdateFactory,
+                   PluginConfigFactory cfgFactory,
+                   @PluginName String pluginName) {
+        this.workQueue = workQueue;
+        this.requestContext = requestContext;
+        this.userFactory = userFactory;
+        this.dbProvider = dbProvider;
+        this.changeDataFactory = changeDataFactory;
+        this.qtGitSessionFactory = qtGitSessionFactory;
+        this.qtBranchLock = qtBranchLock;
+        this.qtUtil = qtUtil;
+        this.qtRebuildScheduler = qtRebuildScheduler;
+        this.updateFactory = updateFactory;
+        this.qtUpdateFactory = qtUpdateFactory;
+
+        PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
+        this.enabled = cfg.getBoolean("asyncStaging", false);
+        this.threads = Math.max(1, cfg.getInt("stagingThreads", DEFAULT_THREADS));
+    }
+
+    @Override
+    public synchronized void start() {
+        if (enabled) {
+            executor = workQueue.createQueue(threads, "QtStaging");
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a change to be staged. The caller must have checked that the
+     * change can be staged; it is checked again when the request is run.
+     */
+    public Request stage(Account.Id accountId, Change change) throws ResourceConflictException {
+        return submit(new Request(nextId.incrementAndGet(), Type.STAGE, accountId, change));
+    }
+
+    /**
+     * Queues a change to be unstaged. The caller must have checked that the
+     * change can be unstaged; it is checked again when the request is run.
+     */
+    public Request unstage(Account.Id accountId, Change change) throws ResourceConflictException {
+        return submit(new Request(nextId.incrementAndGet(), Type.UNSTAGE, accountId, change));
+    }
+
+    /** Returns the request, or null if it is unknown or too old. */
+    public synchronized Request get(long id) {
+        return requests.get(id);
+    }
+
+    /**
+     * Lists the known requests of a project, in the order they were queued.
+     * @param projectKey Project of the requests.
+     * @param branch Destination branch of the requests, or null for all.
+     */
+    public synchronized List<Request> list(Project.NameKey projectKey, Branch.NameKey branch) {
+        List<Request> list = new ArrayList<>();
+        for (Request request : requests.values()) {
+            if (request.branch.getParentKey().equals(projectKey)
+                && (branch == null || request.branch.equals(branch))) {
+                list.add(request);
+            }
+        }
+        return list;
+    }
+
+    private synchronized Request submit(Request request) throws ResourceConflictException {
+        if (executor == null) {
+            throw new ResourceConflictException("Staging queue is not running");
+        }
+        logger.atInfo().log("qtcodereview: staging queue: request %d %s %s to %s",
+                            request.id, request.type, request.changeId, request.branch);
+        requests.put(request.id, request);
+        queues.computeIfAbsent(request.branch, b -> new ArrayDeque<>()).add(request);
+        if (running.add(request.branch)) {
+            executor.execute(() -> drain(request.branch));
+        }
+        return request;
+    }
+
+    /**
+     * Takes the next requests of a branch that can be run together: the
+     * first request and the ones after it of the same type and user.
+     * Returns an empty list and ends the worker of the branch if the queue
+     * is empty.
+     */
+    private synchronized List<Request> next(Branch.NameKey branch) {
+        List<Request> batch = new ArrayList<>();
+        Deque<Request> queue = queues.get(branch);
+        Request first = queue.poll();
+        if (first == null) {
+            queues.remove(branch);
+            running.remove(branch);
+            return batch;
+        }
+        batch.add(first);
+        while (!queue.isEmpty()
+               && queue.peek().type == first.type
+               && queue.peek().accountId.equals(first.accountId)) {
+            batch.add(queue.poll());
+        }
+        for (Request request : batch) {
+            request.state = State.RUNNING;
+        }
+        return batch;
+    }
+
+    private synchronized void retire(List<Request> batch) {
+        for (Request request : batch) {
+            completed.add(request.id);
+        }
+        while (completed.size() > COMPLETED_REQUESTS) {
+            requests.remove(completed.poll());
+        }
+    }
+
+    private void drain(Branch.NameKey branch) {
+        for (List<Request> batch = next(branch); !batch.isEmpty(); batch = next(branch)) {
+            Request first = batch.get(0);
+            try (ManualRequestContext ctx = requestContext.openAs(first.accountId);
+                 QtTrace trace = QtTrace.open(String.format("staging-queue %s of %d changes to %s",
+                                                            first.type, batch.size(), branch), false)) {
+                IdentifiedUser user = userFactory.create(first.accountId);
+                if (first.type == Type.STAGE) {
+                    runStage(user, branch, batch);
+                } else {
+                    runUnstage(user, branch, batch);
+                }
+            } catch (Exception e) {
+                logger.atSevere().withCause(e).log("qtcodereview: staging queue: %s of %d changes to %s failed",
+                                                   first.type, batch.size(), branch);
+                for (Request request : batch) {
+                    if (!request.isCompleted()) request.complete(State.FAILED, e.getMessage());
+                }
+            } finally {
+                retire(batch);
+            }
+        }
+    }
+
+    private void runStage(IdentifiedUser user, Branch.NameKey branch, List<Request> batch) throws Exception {
+        List<ChangeData> changes = new ArrayList<>();
+        Map<Change.Id, Request> byChange = new HashMap<>();
+        Map<Change.Id, String> errors;
+        try (QtBranchLock.Held lock = qtBranchLock.lock(branch);
+             QtGitSession session = qtGitSessionFactory.open(branch.getParentKey())) {
+            // checked under the lock, a stage or unstage outside the queue can change the status
+            for (Request request : batch) {
+                ChangeData cd = changeDataFactory.create(dbProvider.get(), branch.getParentKey(), request.changeId);
+                Change change = cd.change();
+                if (change.getStatus() != Change.Status.NEW) {
+                    request.complete(State.FAILED, "Change is " + change.getStatus());
+                } else if (!change.currentPatchSetId().equals(request.patchSetId)) {
+                    request.complete(State.FAILED, "Revision is not current.");
+                } else if (byChange.containsKey(request.changeId)) {
+                    request.complete(State.FAILED, "Change is queued more than once.");
+                } else {
+                    try {
+                        MergeOp.checkSubmitRule(cd, false);
+                        changes.add(cd);
+                        byChange.put(request.changeId, request);
+                    } catch (ResourceConflictException e) {
+                        request.complete(State.FAILED, e.getMessage());
+                    }
+                }
+            }
+            if (changes.isEmpty()) return;
+
+            errors = qtUtil.stageChanges(session, user, branch, changes);
+        }
+        for (Map.Entry<Change.Id, Request> entry : byChange.entrySet()) {
+            String error = errors.get(entry.getKey());
+            if (error == null) {
+                entry.getValue().complete(State.DONE, "Staged for CI");
+            } else {
+                entry.getValue().complete(State.FAILED, error);
+            }
+        }
+    }
+
+    private void runUnstage(IdentifiedUser user, Branch.NameKey branch, List<Request> batch) throws Exception {
+        List<Request> unstaged = new ArrayList<>();
+        Set<Change.Id> listed = new HashSet<>();
+        Branch.NameKey stagingBranchKey = QtUtil.getStagingBranch(branch);
+        Branch.NameKey destBranchShortKey = QtUtil.getNameKeyShort(branch.getParentKey().get(),
+                                                                   QtUtil.R_STAGING, stagingBranchKey.get());
+        try (QtBranchLock.Held lock = qtBranchLock.lock(branch);
+             QtGitSession session = qtGitSessionFactory.open(branch.getParentKey())) {
+            for (Request request : batch) {
+                Change change = changeDataFactory.create(dbProvider.get(), branch.getParentKey(), request.changeId).change();
+                if (change.getStatus() != Change.Status.STAGED) {
+                    request.complete(State.FAILED, "Change is " + change.getStatus());
+                } else if (!listed.add(request.changeId)) {
+                    request.complete(State.FAILED, "Change is queued more than once.");
+                } else {
+                    unstaged.add(request);
+                }
+            }
+            if (unstaged.isEmpty()) return;
+
+            QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.NEW, Change.Status.STAGED,
+                                                         "Unstaged", null, QtUtil.TAG_CI, null);
+            try (BatchUpdate u = updateFactory.create(dbProvider.get(), branch.getParentKey(), user, TimeUtil.nowTs())) {
+                for (Request request : unstaged) {
+                    u.addOp(request.changeId, op);
+                }
+                u.execute();
+            }
+            if (!qtRebuildScheduler.schedule(branch, user)) {
+                qtUtil.rebuildStagingBranch(session, user, stagingBranchKey, destBranchShortKey);
+            }
+        }
+        for (Request request : unstaged) {
+            request.complete(State.DONE, "Unstaged");
+        }
+    }
+}
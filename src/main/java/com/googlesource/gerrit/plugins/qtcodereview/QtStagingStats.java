@@ -0,0 +1,178 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.index.IndexConfig;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeStatusPredicate;
+import com.google.gerrit.server.query.change.InternalChangeQuery;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps count of the staged and integrating changes of each branch, and of
+ * when the changes were staged, and reports them as gauges per branch. The
+ * counts are loaded from the index when the plugin is started and then kept
+ * up to date by QtChangeUpdateOp, so status changes made outside of the
+ * plugin are only seen after the next start.
+ */
+@Singleton
+public class QtStagingStats implements LifecycleListener {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static class BranchStats {
+        int integrating;
+        // staged changes and the time they were staged
+        final Map<Change.Id, Long> staged = new HashMap<>();
+
+        boolean isEmpty() {
+            return integrating == 0 && staged.isEmpty();
+        }
+
+        long getOldestStaged() {
+            long oldest = Long.MAX_VALUE;
+            for (long when : staged.values()) {
+                oldest = Math.min(oldest, when);
+            }
+            return oldest;
+        }
+    }
+
+    private final OneOffRequestContext requestContext;
+    private final Provider<InternalChangeQuery> queryProvider;
+    private final IndexConfig indexConfig;
+
+    // guarded by this
+    private final Map<Branch.NameKey, BranchStats> branches = new HashMap<>();
+
+    @Inject
+    QtStagingStats(OneOffRequestContext requestContext,
+                   Provider<InternalChangeQuery> queryProvider,
+                   IndexConfig indexConfig,
+                   MetricMaker metricMaker) {
+        this.requestContext = requestContext;
+        this.queryProvider = queryProvider;
+        this.indexConfig = indexConfig;
+
+        CallbackMetric1<String, Long> staged = metricMaker.newCallbackMetric(
+            "staging/staged_changes",
+            Long.class,
+            new Description("Staged changes of a branch")
+                .setGauge()
+                .setUnit("changes"),
+            Field.ofString("branch", "project:branch"));
+        CallbackMetric1<String, Long> integrating = metricMaker.newCallbackMetric(
+            "staging/integrating_changes",
+            Long.class,
+            new Description("Integrating changes of a branch")
+                .setGauge()
+                .setUnit("changes"),
+            Field.ofString("branch", "project:branch"));
+        CallbackMetric1<String, Long> oldestStaged = metricMaker.newCallbackMetric(
+            "staging/oldest_staged_age",
+            Long.class,
+            new Description("Time the oldest staged change of a branch has been staged")
+                .setGauge()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofString("branch", "project:branch"));
+        metricMaker.newTrigger(
+            ImmutableSet.of(staged, integrating, oldestStaged),
+            () -> report(staged, integrating, oldestStaged));
+    }
+
+    @Override
+    public void start() {
+        try (ManualRequestContext ctx = requestContext.open()) {
+            Map<Branch.NameKey, BranchStats> loaded = new HashMap<>();
+            for (ChangeData cd : query(Change.Status.STAGED)) {
+                Change change = cd.change();
+                loaded.computeIfAbsent(change.getDest(), b -> new BranchStats())
+                      .staged.put(change.getId(), change.getLastUpdatedOn().getTime());
+            }
+            for (ChangeData cd : query(Change.Status.INTEGRATING)) {
+                loaded.computeIfAbsent(cd.change().getDest(), b -> new BranchStats()).integrating++;
+            }
+            synchronized (this) {
+                branches.clear();
+                branches.putAll(loaded);
+            }
+            logger.atInfo().log("qtcodereview: staging stats loaded for %d branches", loaded.size());
+        } catch (OrmException e) {
+            logger.atSevere().withCause(e).log("qtcodereview: staging stats cannot be loaded");
+        }
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    private List<ChangeData> query(Change.Status status) throws OrmException {
+        int limit = indexConfig.maxLimit();
+        List<ChangeData> changes = queryProvider.get()
+                                                .setLimit(limit)
+                                                .query(ChangeStatusPredicate.forStatus(status));
+        if (changes.size() >= limit) {
+            logger.atWarning().log("qtcodereview: staging stats limited to %d %s changes", limit, status);
+        }
+        return changes;
+    }
+
+    /**
+     * Records a status change of a change, once it has been saved.
+     * @param change Change after the update.
+     * @param from Status of the change before the update.
+     * @param when Time of the update.
+     */
+    public synchronized void update(Change change, Change.Status from, long when) {
+        Change.Status to = change.getStatus();
+        if (from == to) return;
+
+        BranchStats stats = branches.computeIfAbsent(change.getDest(), b -> new BranchStats());
+        if (from == Change.Status.STAGED) stats.staged.remove(change.getId());
+        if (from == Change.Status.INTEGRATING) stats.integrating = Math.max(0, stats.integrating - 1);
+        if (to == Change.Status.STAGED) stats.staged.put(change.getId(), when);
+        if (to == Change.Status.INTEGRATING) stats.integrating++;
+    }
+
+    private synchronized void report(CallbackMetric1<String, Long> staged,
+                                     CallbackMetric1<String, Long> integrating,
+                                     CallbackMetric1<String, Long> oldestStaged) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Branch.NameKey, BranchStats>> i = branches.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Branch.NameKey, BranchStats> entry = i.next();
+            String branch = entry.getKey().getParentKey().get() + ":" + entry.getKey().getShortName();
+            BranchStats stats = entry.getValue();
+            staged.set(branch, (long) stats.staged.size());
+            integrating.set(branch, (long) stats.integrating);
+            oldestStaged.set(branch, stats.staged.isEmpty() ? 0L : now - stats.getOldestStaged());
+            // an emptied branch is reported once as zero and then dropped
+            if (stats.isEmpty()) i.remove();
+        }
+        staged.prune();
+        integrating.prune();
+        oldestStaged.prune();
+    }
+}
@@ -0,0 +1,118 @@
+//
+// Copyright (C) 2019 The Qt Company
+//
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.flogger.FluentLogger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * Trace of one operation, e.g. a stage request or a staging-approve command.
+ * All the work done by the thread while the trace is open is recorded in it:
+ * the time spent in each phase and the number of commits walked, trees
+ * merged, index queries and NoteDb writes. When the trace is closed, one
+ * summary line with the trace id is logged.
+ *
+ * Traces opened while another trace is open on the same thread are part of
+ * the outer trace. Detailed trace lines are logged at fine level, or at info
+ * level if the trace was requested by the caller, e.g. with --trace.
+ */
+public class QtTrace implements AutoCloseable {
+
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final ThreadLocal<QtTrace> current = new ThreadLocal<>();
+
+    public enum Count { COMMITS_WALKED, TREES_MERGED, INDEX_QUERIES, NOTEDB_WRITES }
+
+    private final String id;
+    private final String operation;
+    private final boolean verbose;
+    private final QtTrace outer;
+    private final long start = System.nanoTime();
+    private final Map<QtMetrics.Phase, Long> phases = new EnumMap<>(QtMetrics.Phase.class);
+    private final Map<Count, Long> counts = new EnumMap<>(Count.class);
+
+    private QtTrace(String id, String operation, boolean verbose, QtTrace outer) {
+        this.id = id;
+        this.operation = operation;
+        this.verbose = verbose;
+        this.outer = outer;
+    }
+
+    /**
+     * Opens a trace of an operation on this thread, or a part of the trace
+     * that is already open.
+     * @param operation Name of the operation, e.g. "stage 1234".
+     * @param verbose True if the detailed trace lines are logged at info level.
+     */
+    public static QtTrace open(String operation, boolean verbose) {
+        QtTrace outer = current.get();
+        if (outer != null) {
+            QtTrace part = new QtTrace(outer.id, operation, outer.verbose, outer);
+            detail("%s started", operation);
+            return part;
+        }
+        QtTrace trace = new QtTrace(newId(), operation, verbose, null);
+        current.set(trace);
+        detail("%s started", operation);
+        return trace;
+    }
+
+    private static String newId() {
+        return String.format("%d-%08x", System.currentTimeMillis() / 1000,
+                             ThreadLocalRandom.current().nextInt());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /** Adds to a count of the open trace, if any. */
+    public static void count(Count count, long n) {
+        QtTrace trace = current.get();
+        if (trace != null) trace.counts.merge(count, n, Long::sum);
+    }
+
+    /** Adds time spent in a phase to the open trace, if any. */
+    static void phase(QtMetrics.Phase phase, long nanos) {
+        QtTrace trace = current.get();
+        if (trace != null) trace.phases.merge(phase, nanos, Long::sum);
+    }
+
+    /** Logs a detailed trace line of the open trace, if any. */
+    public static void detail(String format, Object... args) {
+        QtTrace trace = current.get();
+        if (trace == null) return;
+        FluentLogger.Api api = logger.at(trace.verbose ? Level.INFO : Level.FINE);
+        if (!api.isEnabled()) return;
+        api.logVarargs("qtcodereview: trace " + trace.id + ": " + format, args);
+    }
+
+    @Override
+    public void close() {
+        long took = NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (outer != null) {
+            detail("%s done in %d ms", operation, took);
+            return;
+        }
+        current.remove();
+
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<QtMetrics.Phase, Long> phase : phases.entrySet()) {
+            summary.append(String.format(" %s=%dms", phase.getKey().name().toLowerCase(),
+                                         NANOSECONDS.toMillis(phase.getValue())));
+        }
+        for (Map.Entry<Count, Long> count : counts.entrySet()) {
+            summary.append(String.format(" %s=%d", count.getKey().name().toLowerCase(), count.getValue()));
+        }
+        logger.atInfo().log("qtcodereview: trace %s: %s took %d ms:%s", id, operation, took, summary);
+    }
+}
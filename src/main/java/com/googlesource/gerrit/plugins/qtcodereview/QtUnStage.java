@@ -21,15 +21,14 @@ import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
-import com.google.gerrit.server.ProjectUtil;
 import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.change.RevisionResource;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.permissions.ChangePermission;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.RefPermission;
 import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gerrit.server.update.BatchUpdate;
 import com.google.gerrit.server.update.UpdateException;
@@ -37,57 +36,75 @@ import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 import java.io.IOException;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.ObjectId;
 
-
+@Singleton
 class QtUnStage implements RestModifyView<RevisionResource, SubmitInput>, UiAction<RevisionResource> {
 
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
     public static class Output {
         transient Change change;
+        /** Id of the queued request if staging is asynchronous, see staging-queue. */
+        Long request;
 
         private Output(Change c) {
             change = c;
         }
+
+        private Output(Change c, long request) {
+            this(c);
+            this.request = request;
+        }
     }
 
     private final Provider<ReviewDb> dbProvider;
-    private final GitRepositoryManager repoManager;
+    private final QtGitSession.Factory qtGitSessionFactory;
     private final PermissionBackend permissionBackend;
     private final BatchUpdate.Factory updateFactory;
     private final AccountResolver accountResolver;
     private final ProjectCache projectCache;
+    private final ChangeData.Factory changeDataFactory;
 
     private final QtUtil qtUtil;
     private final QtChangeUpdateOp.Factory qtUpdateFactory;
-
-    private Change change;
-    private Project.NameKey projectKey;
-    private Branch.NameKey destBranchKey;
-    private Branch.NameKey stagingBranchKey;
+    private final QtBranchLock qtBranchLock;
+    private final QtStagingQueue qtStagingQueue;
+    private final QtRebuildScheduler qtRebuildScheduler;
+    private final QtMetrics qtMetrics;
 
     @Inject
     QtUnStage(
         Provider<ReviewDb> dbProvider,
-        GitRepositoryManager repoManager,
+        QtGitSession.Factory qtGitSessionFactory,
         PermissionBackend permissionBackend,
         BatchUpdate.Factory updateFactory,
         AccountResolver accountResolver,
         ProjectCache projectCache,
+        ChangeData.Factory changeDataFactory,
         QtUtil qtUtil,
-        QtChangeUpdateOp.Factory qtUpdateFactory) {
+        QtChangeUpdateOp.Factory qtUpdateFactory,
+        QtBranchLock qtBranchLock,
+        QtStagingQueue qtStagingQueue,
+        QtRebuildScheduler qtRebuildScheduler,
+        QtMetrics qtMetrics) {
       this.dbProvider = dbProvider;
-      this.repoManager = repoManager;
+      this.qtGitSessionFactory = qtGitSessionFactory;
       this.permissionBackend = permissionBackend;
       this.updateFactory = updateFactory;
       this.accountResolver = accountResolver;
       this.projectCache = projectCache;
+      this.changeDataFactory = changeDataFactory;
       this.qtUtil = qtUtil;
       this.qtUpdateFactory = qtUpdateFactory;
+      this.qtBranchLock = qtBranchLock;
+      this.qtStagingQueue = qtStagingQueue;
+      this.qtRebuildScheduler = qtRebuildScheduler;
+      this.qtMetrics = qtMetrics;
     }
 
   @Override
@@ -99,74 +116,92 @@ class QtUnStage implements RestModifyView<RevisionResource, SubmitInput>, UiActi
 
         IdentifiedUser submitter = rsrc.getUser().asIdentifiedUser();
 
-        change = rsrc.getChange();
-        projectKey = rsrc.getProject();
-        destBranchKey = change.getDest();
-        stagingBranchKey = QtUtil.getStagingBranch(destBranchKey);
-
         rsrc.permissions().check(ChangePermission.QT_STAGE);
 
         projectCache.checkedGet(rsrc.getProject()).checkStatePermitsWrite();
 
-        return new Output(removeChangeFromStaging(rsrc, submitter));
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.UNSTAGE)) {
+            Output output = removeChangeFromStaging(rsrc, submitter);
+            timer.succeeded();
+            return output;
+        }
     }
 
-    private Change removeChangeFromStaging(RevisionResource rsrc, IdentifiedUser submitter)
-        throws IOException, ResourceConflictException, RestApiException, UpdateException {
+    private Output removeChangeFromStaging(RevisionResource rsrc, IdentifiedUser submitter)
+        throws IOException, ResourceConflictException, RestApiException, UpdateException, OrmException {
 
-        Repository git = null;
+        Change change = rsrc.getChange();
         final Project.NameKey projectKey = rsrc.getProject();
+        final Branch.NameKey destBranchKey = change.getDest();
+        final Branch.NameKey stagingBranchKey = QtUtil.getStagingBranch(destBranchKey);
         PatchSet patchSet = rsrc.getPatchSet();
 
         logger.atInfo().log("qtcodereview: unstage start for %s", change);
 
-        if (change.getStatus() != Change.Status.STAGED) {
-            logger.atSevere().log("qtcodereview: unstage: change %s status wrong %s", change, change.getStatus());
-            throw new ResourceConflictException("change is " + change.getStatus());
-        } else if (!ProjectUtil.branchExists(repoManager, change.getDest())) {
-            logger.atSevere().log("qtcodereview: unstage: change %s destination branch \"%s\" not found", change, change.getDest().get());
-            throw new ResourceConflictException(String.format("destination branch \"%s\" not found.", change.getDest().get()));
-        } else if (!rsrc.getPatchSet().getId().equals(change.currentPatchSetId())) {
-            logger.atSevere().log("qtcodereview: unstage: change %s revision %s is not current revision", change, rsrc.getPatchSet().getRevision().get());
-            throw new ResourceConflictException(String.format("revision %s is not current revision", rsrc.getPatchSet().getRevision().get()));
-        }
-
         final Branch.NameKey destBranchShortKey =  QtUtil.getNameKeyShort(projectKey.get(), QtUtil.R_STAGING, stagingBranchKey.get());
 
-        try {
-            git = repoManager.openRepository(projectKey);
-
-            ObjectId srcId = git.resolve(patchSet.getRevision().get());
-            if (srcId == null) {
-                logger.atSevere().log("qtcodereview: unstage merge: change %s has invalid revision %s", change, patchSet);
-                throw new ResourceConflictException("Invalid Revision: " + patchSet);
+        try (QtGitSession session = qtGitSessionFactory.open(projectKey)) {
+            Repository git = session.getRepository();
+
+            if (change.getStatus() != Change.Status.STAGED) {
+                logger.atSevere().log("qtcodereview: unstage: change %s status wrong %s", change, change.getStatus());
+                throw new ResourceConflictException("change is " + change.getStatus());
+            } else if (!QtUtil.branchExists(git, change.getDest())) {
+                logger.atSevere().log("qtcodereview: unstage: change %s destination branch \"%s\" not found", change, change.getDest().get());
+                throw new ResourceConflictException(String.format("destination branch \"%s\" not found.", change.getDest().get()));
+            } else if (!rsrc.getPatchSet().getId().equals(change.currentPatchSetId())) {
+                logger.atSevere().log("qtcodereview: unstage: change %s revision %s is not current revision", change, rsrc.getPatchSet().getRevision().get());
+                throw new ResourceConflictException(String.format("revision %s is not current revision", rsrc.getPatchSet().getRevision().get()));
             }
 
-            QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.NEW, Change.Status.STAGED, "Unstaged", null, QtUtil.TAG_CI, null);
-            BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, submitter, TimeUtil.nowTs());
-            u.addOp(rsrc.getChange().getId(), op).execute();
-
-            qtUtil.rebuildStagingBranch(git, submitter, projectKey, stagingBranchKey, destBranchShortKey);
-
-            change = op.getChange();
-            logger.atInfo().log("qtcodereview: unstaged %s from %s", change, stagingBranchKey);
+            if (qtStagingQueue.isEnabled()) {
+                QtStagingQueue.Request request = qtStagingQueue.unstage(submitter.getAccountId(), change);
+                return new Output(change, request.getId());
+            }
 
-        } catch (ResourceConflictException e) {
-            logger.atSevere().log("qtcodereview: unstage resource conflict error %s", e);
-            throw new ResourceConflictException(e.toString());
-        } catch (QtUtil.MergeConflictException e) {
-            logger.atSevere().log("qtcodereview: unstage merge conflict error %s", e);
-            throw new IOException(e);
-        } catch (IOException e) {
-            logger.atSevere().log("qtcodereview: unstage IOException %s", e);
-            throw new IOException(e);
-        } finally {
-            if (git != null) {
-                git.close();
+            try (QtBranchLock.Held lock = qtBranchLock.lock(destBranchKey)) {
+                // another request may have unstaged the change while this one waited for the lock
+                Change current = changeDataFactory.create(dbProvider.get(), projectKey, change.getId()).change();
+                if (current.getStatus() != Change.Status.STAGED) {
+                    logger.atSevere().log("qtcodereview: unstage: change %s status wrong %s", current, current.getStatus());
+                    throw new ResourceConflictException("change is " + current.getStatus());
+                }
+
+                ObjectId srcId = git.resolve(patchSet.getRevision().get());
+                if (srcId == null) {
+                    logger.atSevere().log("qtcodereview: unstage merge: change %s has invalid revision %s", change, patchSet);
+                    throw new ResourceConflictException("Invalid Revision: " + patchSet);
+                }
+
+                QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.NEW, Change.Status.STAGED, "Unstaged", null, QtUtil.TAG_CI, null);
+                try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.DB)) {
+                    BatchUpdate u =  updateFactory.create(dbProvider.get(), projectKey, submitter, TimeUtil.nowTs());
+                    u.addOp(rsrc.getChange().getId(), op).execute();
+                }
+
+                if (!qtRebuildScheduler.schedule(destBranchKey, submitter)) {
+                    qtUtil.rebuildStagingBranch(session, submitter, stagingBranchKey, destBranchShortKey);
+                }
+
+                change = op.getChange();
+                logger.atInfo().log("qtcodereview: unstaged %s from %s", change, stagingBranchKey);
+
+            } catch (ResourceConflictException e) {
+                logger.atSevere().log("qtcodereview: unstage resource conflict error %s", e);
+                throw new ResourceConflictException(e.toString());
+            } catch (QtUtil.MergeConflictException e) {
+                logger.atSevere().log("qtcodereview: unstage merge conflict error %s", e);
+                throw new IOException(e);
+            } catch (QtUtil.StagingLimitException e) {
+                logger.atSevere().log("qtcodereview: unstage staging ref limit error %s", e);
+                throw new ResourceConflictException("Staging ref limit exceeded: " + e.getMessage());
+            } catch (IOException e) {
+                logger.atSevere().log("qtcodereview: unstage IOException %s", e);
+                throw new IOException(e);
             }
         }
 
-        return change; // this doesn't return data to client, if needed use ChangeJson to convert it
+        return new Output(change); // this doesn't return data to client, if needed use ChangeJson to convert it
     }
 
     @Override
@@ -182,10 +217,6 @@ class QtUnStage implements RestModifyView<RevisionResource, SubmitInput>, UiActi
         }
 
         try {
-            change = rsrc.getChange();
-            projectKey = rsrc.getProject();
-            destBranchKey = change.getDest();
-            stagingBranchKey = QtUtil.getStagingBranch(destBranchKey);
             rsrc.permissions().check(ChangePermission.QT_STAGE);
         } catch (AuthException | PermissionBackendException e) {
             return description;
@@ -17,9 +17,13 @@
 package com.googlesource.gerrit.plugins.qtcodereview;
 
 import com.google.gerrit.common.FooterConstants;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.index.IndexConfig;
+import com.google.gerrit.index.query.Predicate;
 import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
@@ -27,10 +31,14 @@ import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeMessagesUtil;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.gerrit.server.query.change.ChangeIdPredicate;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ProjectPredicate;
+import com.google.gerrit.server.query.change.RefPredicate;
 import com.google.gerrit.server.submit.IntegrationException;
 import com.google.gerrit.server.update.BatchUpdate;
 import com.google.gerrit.server.update.UpdateException;
@@ -40,7 +48,6 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
-import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
@@ -53,14 +60,21 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.merge.ThreeWayMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.util.RawParseUtils;
 
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -80,28 +94,54 @@ public class QtUtil {
     public static final String TAG_CI = ChangeMessagesUtil.AUTOGENERATED_TAG_PREFIX + "qt:ci";
     public static final String TAG_ADMINCHANGE = ChangeMessagesUtil.AUTOGENERATED_TAG_PREFIX + "qt:adminchange";
     public static final String TAG_REOPENED = ChangeMessagesUtil.AUTOGENERATED_TAG_PREFIX + "qt:reopened";
+    public static final String BISECT_BUILD_A = "/a";
+    public static final String BISECT_BUILD_B = "/b";
+    public static final String R_BISECT_BUILDS = "refs/meta/qt-builds/bisect/";
+    public static final String R_SPECULATIVE_BUILDS = "refs/meta/qt-builds/speculative/";
+    public static final String SPECULATIVE_BUILD = ".";
 
+    /** Number of times a staging ref update is attempted when the ref keeps moving. */
+    public static final int STAGING_UPDATE_ATTEMPTS = 5;
+
+    // Upper limit of Change-Ids OR'd together into one index query
+    private static final int CHANGE_KEY_QUERY_BATCH = 100;
+
+    // Default for the maximum number of commits on a staging ref
+    private static final int DEFAULT_STAGING_COMMIT_LIMIT = 10000;
+
+    private static final byte[] CHANGE_ID_KEY = Constants.encodeASCII(FooterConstants.CHANGE_ID.getName());
 
     private final Provider<ReviewDb> dbProvider;
     private final Provider<InternalChangeQuery> queryProvider;
+    private final IndexConfig indexConfig;
     private final GitReferenceUpdated referenceUpdated;
     private final BatchUpdate.Factory updateFactory;
     private final QtCherryPickPatch qtCherryPickPatch;
     private final QtChangeUpdateOp.Factory qtUpdateFactory;
+    private final QtMetrics qtMetrics;
+    private final int stagingCommitLimit;
 
     @Inject
     QtUtil(Provider<ReviewDb> dbProvider,
            Provider<InternalChangeQuery> queryProvider,
+           IndexConfig indexConfig,
            GitReferenceUpdated referenceUpdated,
            BatchUpdate.Factory updateFactory,
            QtCherryPickPatch qtCherryPickPatch,
-           QtChangeUpdateOp.Factory qtUpdateFactory) {
+           QtChangeUpdateOp.Factory qtUpdateFactory,
+           QtMetrics qtMetrics,
+           PluginConfigFactory cfgFactory,
+           @PluginName String pluginName) {
         this.dbProvider = dbProvider;
         this.queryProvider = queryProvider;
+        this.indexConfig = indexConfig;
         this.referenceUpdated = referenceUpdated;
         this.updateFactory = updateFactory;
         this.qtCherryPickPatch = qtCherryPickPatch;
         this.qtUpdateFactory = qtUpdateFactory;
+        this.qtMetrics = qtMetrics;
+        this.stagingCommitLimit = cfgFactory.getFromGerritConfig(pluginName)
+                                            .getInt("stagingCommitLimit", DEFAULT_STAGING_COMMIT_LIMIT);
     }
 
     public static class MergeConflictException extends Exception {
@@ -118,6 +158,20 @@ public class QtUtil {
         }
     }
 
+    public static class StagingLimitException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public StagingLimitException(final String message) {
+            super(message);
+        }
+    }
+
+    public static class StagingUpdateException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public StagingUpdateException(final String message) {
+            super(message);
+        }
+    }
+
     public static Project.NameKey getProjectKey(final String project) {
         String projectName = project;
         if (project.endsWith(Constants.DOT_GIT_EXT)) {
@@ -242,8 +296,22 @@ public class QtUtil {
         Ref sourceRef = git.getRefDatabase().getRef(stagingBranchName);
         if (sourceRef == null) { throw new NoSuchRefException(stagingBranchName); }
 
-        RefUpdate refUpdate = git.updateRef(buildBranchName);
-        refUpdate.setNewObjectId(sourceRef.getObjectId());
+        return createBuildRef(git, user, projectKey, sourceRef.getObjectId(),
+                              new Branch.NameKey(projectKey, buildBranchName));
+    }
+
+    /**
+     * Creates a build ref pointing to a commit.
+     * @param buildBranch Build ref name, including the refs/builds prefix.
+     */
+    public Result createBuildRef(Repository git,
+                                 IdentifiedUser user,
+                                 final Project.NameKey projectKey,
+                                 final ObjectId commit,
+                                 final Branch.NameKey buildBranch)
+                                 throws IOException {
+        RefUpdate refUpdate = git.updateRef(buildBranch.get());
+        refUpdate.setNewObjectId(commit);
         refUpdate.setForceUpdate(false);
         RefUpdate.Result result = refUpdate.update();
 
@@ -253,6 +321,130 @@ public class QtUtil {
         return result;
     }
 
+    /**
+     * Deletes a build ref.
+     * @param buildBranch Build ref name, including the refs/builds prefix.
+     */
+    public Result deleteBuildRef(Repository git,
+                                 IdentifiedUser user,
+                                 final Project.NameKey projectKey,
+                                 final Branch.NameKey buildBranch)
+                                 throws IOException {
+        RefUpdate refUpdate = git.updateRef(buildBranch.get());
+        refUpdate.setForceUpdate(true);
+        RefUpdate.Result result = refUpdate.delete();
+
+        // send ref deleted event
+        referenceUpdated.fire(projectKey, refUpdate, ReceiveCommand.Type.DELETE, user.state());
+
+        // the records of the build go with it
+        deleteBuildRecord(git, getBuildRecordRef(R_BISECT_BUILDS, buildBranch));
+        deleteBuildRecord(git, getBuildRecordRef(R_SPECULATIVE_BUILDS, buildBranch));
+
+        return result;
+    }
+
+    private static String getBuildRecordRef(final String recordPrefix, final Branch.NameKey build) {
+        return recordPrefix + build.get().substring(R_BUILDS.length());
+    }
+
+    private static void deleteBuildRecord(Repository git, final String recordRef) throws IOException {
+        if (git.getRefDatabase().exactRef(recordRef) == null) return;
+
+        RefUpdate refUpdate = git.updateRef(recordRef);
+        refUpdate.setForceUpdate(true);
+        RefUpdate.Result result = refUpdate.delete();
+        if (result != Result.FORCED) {
+            logger.atWarning().log("qtcodereview: failed to delete build record %s result %s", recordRef, result);
+        }
+    }
+
+    /**
+     * Gets the two builds a failed build is split into when it is bisected.
+     * The halves are stored under the failed build, which is removed, e.g.
+     * refs/builds/123 is split into refs/builds/123/a and refs/builds/123/b.
+     */
+    public static Branch.NameKey[] getBisectBuilds(final Branch.NameKey build) {
+        return new Branch.NameKey[] {
+            new Branch.NameKey(build.getParentKey(), build.get() + BISECT_BUILD_A),
+            new Branch.NameKey(build.getParentKey(), build.get() + BISECT_BUILD_B)
+        };
+    }
+
+    /**
+     * Records that a build is a half of a bisected build. A build is never
+     * taken as a bisect build by its name only, as the CI may use any name.
+     * @param commit Commit of the build, the record points to it as well and
+     *        is moved with it when the build is rebased.
+     */
+    public static Result recordBisectBuild(Repository git,
+                                           final Branch.NameKey build,
+                                           final ObjectId commit)
+                                           throws IOException {
+        RefUpdate refUpdate = git.updateRef(getBuildRecordRef(R_BISECT_BUILDS, build));
+        refUpdate.setNewObjectId(commit);
+        refUpdate.setForceUpdate(true);
+        return refUpdate.update();
+    }
+
+    /** Checks if a build was created by bisecting a failed build. */
+    public static boolean isBisectBuild(Repository git, final Branch.NameKey build) throws IOException {
+        return git.getRefDatabase().exactRef(getBuildRecordRef(R_BISECT_BUILDS, build)) != null;
+    }
+
+    /**
+     * Gets the speculative build of the first changes of a build, e.g. the
+     * first 2 changes of refs/builds/123 are in refs/builds/123.2.
+     */
+    public static Branch.NameKey getSpeculativeBuild(final Branch.NameKey build, int size) {
+        return new Branch.NameKey(build.getParentKey(), build.get() + SPECULATIVE_BUILD + size);
+    }
+
+    /**
+     * Records that a build is a speculative build of the build it is named
+     * after. A build is never taken as a speculative build by its name only,
+     * as the CI may use names like 20191015.3 for its own builds.
+     * @param commit Commit of the build, the record points to it as well.
+     */
+    public static Result recordSpeculativeBuild(Repository git,
+                                                final Branch.NameKey build,
+                                                final ObjectId commit)
+                                                throws IOException {
+        RefUpdate refUpdate = git.updateRef(getBuildRecordRef(R_SPECULATIVE_BUILDS, build));
+        refUpdate.setNewObjectId(commit);
+        refUpdate.setForceUpdate(false);
+        return refUpdate.update();
+    }
+
+    /**
+     * Gets the build a speculative build was created from.
+     * @return Build, or null if the build is not a recorded speculative build.
+     */
+    public static Branch.NameKey getSpeculativeBuildBase(Repository git, final Branch.NameKey build)
+                                                         throws IOException {
+        if (git.getRefDatabase().exactRef(getBuildRecordRef(R_SPECULATIVE_BUILDS, build)) == null) return null;
+
+        String name = build.get();
+        int separator = name.lastIndexOf(SPECULATIVE_BUILD);
+        if (!name.startsWith(R_BUILDS) || separator <= R_BUILDS.length()
+            || separator == name.length() - 1) return null;
+        for (int i = separator + 1; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) return null;
+        }
+        return new Branch.NameKey(build.getParentKey(), name.substring(0, separator));
+    }
+
+    /** Lists the existing speculative builds of a build. */
+    public static List<Branch.NameKey> listSpeculativeBuilds(Repository git, final Branch.NameKey build)
+                                                             throws IOException {
+        List<Branch.NameKey> result = new ArrayList<>();
+        for (Ref ref : git.getRefDatabase().getRefsByPrefix(build.get() + SPECULATIVE_BUILD)) {
+            Branch.NameKey key = new Branch.NameKey(build.getParentKey(), ref.getName());
+            if (build.equals(getSpeculativeBuildBase(git, key))) result.add(key);
+        }
+        return result;
+    }
+
     private static Result updateRef(Repository git,
                                     final String ref,
                                     final String newValue,
@@ -278,147 +470,130 @@ public class QtUtil {
         return result;
     }
 
-    private String getChangeId(RevCommit commit) {
-        List<String> changeIds = commit.getFooterLines(FooterConstants.CHANGE_ID);
-        String changeId = null;
-        if (!changeIds.isEmpty()) changeId = changeIds.get(0);
-        return changeId;
+    /**
+     * Updates a ref only if it still points to the expected commit.
+     * @param expectedOldId Expected current value, or null if the ref must
+     *        not exist yet.
+     * @return Result of the update. LOCK_FAILURE if the ref has been changed
+     *         by someone else in the meantime.
+     */
+    public static Result updateRef(Repository git,
+                                   final String ref,
+                                   final ObjectId id,
+                                   final ObjectId expectedOldId,
+                                   final boolean force)
+                                   throws IOException {
+        RefUpdate refUpdate = git.updateRef(ref);
+        refUpdate.setNewObjectId(id);
+        refUpdate.setExpectedOldObjectId(expectedOldId != null ? expectedOldId : ObjectId.zeroId());
+        refUpdate.setForceUpdate(force);
+        return refUpdate.update();
     }
 
-    private ChangeData findChangeFromList(String changeId, List<ChangeData> changes)
-                                          throws OrmException {
-        for (ChangeData item : changes) {
-            if (item.change().getKey().get().equals(changeId)) return item;
-        }
-        return null;
-    }
-
-    // Step backwards from the ref and return change list in the same order
-    private List<ChangeData> arrangeOrderLikeInRef(Repository git,
-                                                   ObjectId refObj,
-                                                   ObjectId tipObj,
-                                                   List<ChangeData> changeList)
-                                                   throws MissingObjectException, OrmException,
-                                                          IOException {
-        List<ChangeData> results = new ArrayList<ChangeData>();
-        if (refObj.equals(tipObj)) return results;
-
-        RevWalk revWalk = new RevWalk(git);
-        RevCommit commit = revWalk.parseCommit(refObj);
-        int count = 0;
-        do {
-            count++;
-            String changeId = getChangeId(commit);
-
-            if (commit.getParentCount() == 0) {
-                commit = null; // something is going wrong, just exit
-            } else {
-                if (changeId == null && commit.getParentCount() > 1) {
-                    changeId = getChangeId(revWalk.parseCommit(commit.getParent(1)));
-                }
-                ChangeData change = findChangeFromList(changeId, changeList);
-                if (change != null) results.add(0, change);
+    /** Checks if a failed ref update can be retried on top of the new value of the ref. */
+    public static boolean isConcurrentUpdate(Result result) {
+        return result == Result.LOCK_FAILURE || result == Result.REJECTED;
+    }
 
-                // It can always be trusted that parent in index 0 is the correct one
-                commit = revWalk.parseCommit(commit.getParent(0));
-            }
-        } while (commit != null && !commit.equals(tipObj) && count < 100);
+    /**
+     * Finds the Change-Id footer of a commit. The footer lines are scanned
+     * in the raw commit buffer the same way as RevCommit.getFooterLines()
+     * does, but only the Change-Id value is decoded. If there are several
+     * Change-Id footers, the last one is used, as Gerrit does on push.
+     * @param commit Commit with a parsed body.
+     * @return The Change-Id, or null if the commit has none.
+     */
+    static String getChangeId(RevCommit commit) {
+        byte[] raw = commit.getRawBuffer();
+        int msgStart = RawParseUtils.commitMessage(raw, 0);
+        if (msgStart < 0) return null;
+
+        int ptr = raw.length - 1;
+        while (ptr > msgStart && raw[ptr] == '\n') ptr--;
+        for (;;) {
+            ptr = RawParseUtils.prevLF(raw, ptr);
+            if (ptr <= msgStart) return null;
+            int keyStart = ptr + 2;
+            // a blank line ends the footer paragraph
+            if (raw[keyStart] == '\n') return null;
+
+            int keyEnd = RawParseUtils.endOfFooterLineKey(raw, keyStart);
+            if (keyEnd < 0 || !isChangeIdKey(raw, keyStart, keyEnd)) continue;
+
+            int valStart = keyEnd + 1;
+            while (valStart < raw.length && raw[valStart] == ' ') valStart++;
+            int valEnd = RawParseUtils.nextLF(raw, valStart);
+            if (raw[valEnd - 1] == '\n') valEnd--;
+            return RawParseUtils.decode(raw, valStart, valEnd);
+        }
+    }
 
-        if (count == 100) return null;
-        return results;
+    private static boolean isChangeIdKey(byte[] raw, int keyStart, int keyEnd) {
+        if (keyEnd - keyStart != CHANGE_ID_KEY.length) return false;
+        for (int i = 0; i < CHANGE_ID_KEY.length; i++) {
+            // footer keys are matched ignoring case
+            if (Character.toLowerCase(raw[keyStart + i]) != Character.toLowerCase(CHANGE_ID_KEY[i])) return false;
+        }
+        return true;
+    }
+
+    private static Map<Change.Key, ChangeData> mapByKey(List<ChangeData> changes) throws OrmException {
+        Map<Change.Key, ChangeData> result = new HashMap<>();
+        for (ChangeData item : changes) {
+            result.put(item.change().getKey(), item);
+        }
+        return result;
     }
 
-    private ObjectId pickChangesToStagingRef(Repository git,
-                                             final Project.NameKey projectKey,
+    /**
+     * Picks the changes on top of each other. The changes themselves are not
+     * updated and the new commits stay in the session inserter until flushed.
+     */
+    private ObjectId pickChangesToStagingRef(QtGitSession session,
                                              List<ChangeData> changes,
                                              ObjectId tipObj)
-                                             throws OrmException, IOException, IntegrationException {
+                                             throws OrmException, IntegrationException {
         ObjectId newId = tipObj;
         for (ChangeData item : changes) {
             Change change = item.change();
             logger.atInfo().log("qtcodereview: rebuilding add %s", change);
             PatchSet p = item.currentPatchSet();
-            ObjectId srcId = git.resolve(p.getRevision().get());
-            newId = qtCherryPickPatch.cherryPickPatch(item,
-                                                      projectKey,
-                                                      srcId,
-                                                      newId,
-                                                      false, // allowFastForward
-                                                      null, // newStatus
-                                                      null, // defaultMessage
-                                                      null, // inputMessage
-                                                      TAG_CI  // tag
-                                                      ).toObjectId();
+            ObjectId srcId = ObjectId.fromString(p.getRevision().get());
+            newId = qtCherryPickPatch.pickPatch(session,
+                                                item,
+                                                srcId,
+                                                newId,
+                                                false // allowFastForward
+                                                ).toObjectId();
         }
         return newId;
     }
 
-    // Step backwards from staging head and return 1st commit in integrating status
-    private ObjectId findIntegrationHead(Repository git,
-                                         ObjectId stagingHead,
-                                         ObjectId branchHead,
-                                         List<ChangeData> integratingChanges)
-                                         throws MissingObjectException, OrmException, IOException {
-
-        if (stagingHead.equals(branchHead)) return branchHead;
-
-        RevWalk revWalk = new RevWalk(git);
-        RevCommit commit = revWalk.parseCommit(stagingHead);
-        int count = 0;
-        do {
-            count++;
-            String changeId = getChangeId(commit);
-            ChangeData change = findChangeFromList(changeId, integratingChanges);
-            if (change != null) return commit;
-
-            if (commit.getParentCount() > 0) {
-                // It can always be trusted that parent in index 0 is the correct one
-                commit = revWalk.parseCommit(commit.getParent(0));
-            } else commit = null;
-
-        } while (commit != null && !commit.equals(branchHead) && count < 100);
-
-        return branchHead;
-    }
-
-    // Step backwards from staging head and find commit that can be reused
-    private ObjectId findReusableStagingHead(Repository git,
-                                             ObjectId stagingHead,
-                                             ObjectId integrationHead,
-                                             List<ChangeData> stagedChanges)
-                                             throws MissingObjectException, OrmException, IOException {
-
-        if (stagingHead.equals(integrationHead)) return integrationHead;
-
-        ObjectId reusableHead = null;
-        RevWalk revWalk = new RevWalk(git);
-        RevCommit commit = revWalk.parseCommit(stagingHead);
-        int count = 0;
-        do {
-            count++;
-            String changeId = getChangeId(commit);
-            ChangeData change = findChangeFromList(changeId, stagedChanges);
-            if (change != null) {
-                if (reusableHead == null) reusableHead = commit;
-            } else reusableHead = null;
-
-            if (commit.getParentCount() > 0) {
-                // It can always be trusted that parent in index 0 is the correct one
-                commit = revWalk.parseCommit(commit.getParent(0));
-            } else commit = null;
-
-        } while (commit != null && !commit.equals(integrationHead) && count < 100);
-
-        if (reusableHead == null) reusableHead = integrationHead;
-        return reusableHead;
-    }
-
-    public void rebuildStagingBranch(Repository git,
+    /**
+     * Rebuilds the staging ref of a branch from its integrating and staged
+     * changes. If a staged change cannot be picked, all the staged changes
+     * are moved back to new once the staging ref is updated.
+     * @throws StagingLimitException Thrown if the staging ref is too far
+     *         ahead of the branch. The staging ref is not changed then.
+     */
+    public void rebuildStagingBranch(QtGitSession session,
                                      IdentifiedUser user,
-                                     final Project.NameKey projectKey,
                                      final Branch.NameKey stagingBranchKey,
                                      final Branch.NameKey destBranchShortKey)
-                                     throws MergeConflictException {
+                                     throws MergeConflictException, StagingLimitException {
+        try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.REBUILD)) {
+            rebuildStagingRef(session, user, stagingBranchKey, destBranchShortKey);
+            timer.succeeded();
+        }
+    }
+
+    private void rebuildStagingRef(QtGitSession session,
+                                   IdentifiedUser user,
+                                   final Branch.NameKey stagingBranchKey,
+                                   final Branch.NameKey destBranchShortKey)
+                                   throws MergeConflictException, StagingLimitException {
+         final Repository git = session.getRepository();
+         final Project.NameKey projectKey = session.getProject();
          InternalChangeQuery query = null;
          List<ChangeData> changes_integrating = null;
          List<ChangeData> changes_staged = null;
@@ -428,48 +603,86 @@ public class QtUtil {
          ObjectId newStageRef = null;
          ObjectId integratingRef = null;
          String stagingBranchName = null;
+         boolean conflict = false;
 
          try {
              stagingBranchName = stagingBranchKey.get();
              oldStageRef = git.resolve(stagingBranchName);
              branchRef = git.resolve(destBranchShortKey.get());
 
-             query = queryProvider.get();
-             changes_integrating = query.byBranchStatus(destBranchShortKey, Change.Status.INTEGRATING);
+             try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.QUERY)) {
+                 query = queryProvider.get();
+                 changes_integrating = query.byBranchStatus(destBranchShortKey, Change.Status.INTEGRATING);
 
-             query = queryProvider.get();
-             changes_staged = query.byBranchStatus(destBranchShortKey, Change.Status.STAGED);
+                 query = queryProvider.get();
+                 changes_staged = query.byBranchStatus(destBranchShortKey, Change.Status.STAGED);
+             }
+             QtTrace.count(QtTrace.Count.INDEX_QUERIES, 2);
+             QtTrace.detail("rebuild %s: %d integrating and %d staged changes", stagingBranchKey,
+                            changes_integrating.size(), changes_staged.size());
          } catch (OrmException | IOException e) {
              logger.atSevere().log("qtcodereview: rebuild staging ref %s db query failed. Exception %s",
                                     stagingBranchKey, e);
              throw new MergeConflictException("fatal: " + e.getMessage());
          }
 
-         try {
-             logger.atInfo().log("qtcodereview: rebuild staging ref reset %s back to %s",
-                                 stagingBranchKey, destBranchShortKey);
-             Result result = QtUtil.createStagingBranch(git, destBranchShortKey);
-             if (result == null) throw new NoSuchRefException("Cannot create staging ref: " + stagingBranchName);
-             logger.atInfo().log("qtcodereview: rebuild staging ref reset to %s with result %s", branchRef, result);
-             integratingRef = findIntegrationHead(git, oldStageRef, branchRef, changes_integrating);
+         try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.WALK)) {
+             // the staging ref is left untouched until the final update, also on failure
+             QtStagingLayout layout = QtStagingLayout.analyze(session.getRevWalk(), session.getChangeIds(),
+                                                              oldStageRef, branchRef,
+                                                              mapByKey(changes_integrating),
+                                                              mapByKey(changes_staged),
+                                                              stagingCommitLimit);
+             integratingRef = layout.getIntegrationHead();
              logger.atInfo().log("qtcodereview: rebuild staging integration ref is %s", integratingRef);
-             newStageRef = findReusableStagingHead(git, oldStageRef, integratingRef, changes_staged);
+             newStageRef = layout.getReusableHead();
              logger.atInfo().log("qtcodereview: rebuild staging reused staging ref is %s", newStageRef);
-             changes_to_cherrypick = arrangeOrderLikeInRef(git, oldStageRef, newStageRef, changes_staged);
-         } catch (NoSuchRefException | IOException | OrmException e) {
-             logger.atSevere().log("qtcodereview: rebuild staging ref reset %s failed. Exception %s",
+             changes_to_cherrypick = layout.getChangesToCherryPick();
+         } catch (StagingLimitException e) {
+             logger.atSevere().log("qtcodereview: rebuild staging ref %s too long: %s", stagingBranchKey, e.getMessage());
+             throw e;
+         } catch (IOException | OrmException e) {
+             logger.atSevere().log("qtcodereview: rebuild staging ref %s analysis failed. Exception %s",
                                    stagingBranchKey, e);
              throw new MergeConflictException("fatal: " + e.getMessage());
          }
 
-         try {
-             newStageRef = pickChangesToStagingRef(git, projectKey, changes_to_cherrypick, newStageRef);
+         try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.PICK)) {
+             newStageRef = pickChangesToStagingRef(session, changes_to_cherrypick, newStageRef);
          } catch(Exception e) {
              logger.atInfo().log("qtcodereview: rebuild staging ref %s merge conflict", stagingBranchKey);
              newStageRef = integratingRef;
+             conflict = true;
+         }
+
+         try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.REF)) {
+             // write all the picked commits at once before they become reachable
+             session.flush();
+             // replace the staging ref in one step, only if nobody else has changed it meanwhile
+             Result result = updateRef(git, stagingBranchName, newStageRef, oldStageRef, true);
+             if (result != Result.NEW && result != Result.FORCED
+                 && result != Result.FAST_FORWARD && result != Result.NO_CHANGE) {
+                 logger.atSevere().log("qtcodereview: rebuild %s failed to update ref: %s", stagingBranchKey, result);
+                 throw new MergeConflictException("fatal: staging ref update failed, " + result);
+             }
+
+             // send ref updated event only if it changed
+             if (!newStageRef.equals(oldStageRef)) {
+                 referenceUpdated.fire(projectKey, stagingBranchName, oldStageRef, newStageRef, user.state());
+                 QtTrace.detail("ref-updated %s %s -> %s", stagingBranchName, oldStageRef.name(), newStageRef.name());
+             }
+         } catch (IOException e) {
+             logger.atSevere().log("qtcodereview: rebuild %s failed to update ref %s", stagingBranchKey, e);
+             throw new MergeConflictException("fatal: IOException");
+         }
+
+         // the staged changes are left out of the staging ref now, they are moved
+         // back to new only after that, so a failed ref update leaves them staged
+         if (conflict) {
              String message = "Merge conflict in staging branch. Status changed back to new. Please stage again.";
              QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.NEW, Change.Status.STAGED, message, null, null, null);
-             try (BatchUpdate u = updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
+             try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.DB);
+                  BatchUpdate u = updateFactory.create(dbProvider.get(), projectKey, user, TimeUtil.nowTs())) {
                  for (ChangeData item: changes_staged) {
                      Change change = item.change();
                      logger.atInfo().log("qtcodereview: staging ref rebuild merge conflict. Change %s back to NEW", change);
@@ -482,26 +695,141 @@ public class QtUtil {
                  logger.atSevere().log("qtcodereview: staging ref rebuild. Failed to update change status %s", ex);
              }
          }
+    }
 
-         try {
-             RefUpdate refUpdate = git.updateRef(stagingBranchName);
-             refUpdate.setNewObjectId(newStageRef);
-             refUpdate.update();
+    /**
+     * Stages changes on top of the staging ref of their branch. The changes
+     * are picked in the given order, and the staging ref update, the event and
+     * the status update are done once for all of them. If the staging ref is
+     * changed meanwhile, the changes are picked again on top of it. The caller
+     * must have checked that the changes can be staged.
+     * @param session Git session of the project.
+     * @param user User staging the changes.
+     * @param destBranchKey Destination branch of the changes.
+     * @param changes Changes to stage, their current patch sets are picked.
+     * @return Errors of the changes that could not be picked, by change. All
+     *         the other changes are staged.
+     * @throws StagingUpdateException Thrown if the staging ref cannot be
+     *         created or updated. None of the changes is staged then.
+     */
+    public Map<Change.Id, String> stageChanges(QtGitSession session,
+                                               IdentifiedUser user,
+                                               final Branch.NameKey destBranchKey,
+                                               List<ChangeData> changes)
+                                               throws IOException, OrmException, UpdateException,
+                                                      RestApiException, StagingUpdateException {
+        final Repository git = session.getRepository();
+        final Branch.NameKey stagingBranchKey = getStagingBranch(destBranchKey);
+        Map<Change.Id, String> errors = new LinkedHashMap<>();
+        List<ChangeData> picked = new ArrayList<>();
+
+        if (!branchExists(git, stagingBranchKey) && createStagingBranch(git, destBranchKey) == null) {
+            throw new StagingUpdateException("Cannot create staging ref: " + stagingBranchKey.get());
+        }
+        ObjectId oldId = git.resolve(stagingBranchKey.get());
+        if (oldId == null) throw new StagingUpdateException("Invalid Revision: " + stagingBranchKey.get());
+
+        // the staging ref is only moved if it is still where the changes were picked to,
+        // otherwise the changes are picked again on top of the new staging head
+        ObjectId tip;
+        for (int attempt = 1; ; attempt++) {
+            tip = oldId;
+            picked.clear();
+            errors.clear();
+            try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.PICK)) {
+                for (ChangeData cd : changes) {
+                    ObjectId sourceId = ObjectId.fromString(cd.currentPatchSet().getRevision().get());
+                    try {
+                        tip = qtCherryPickPatch.pickPatch(session, cd, sourceId, tip, false).toObjectId();
+                        picked.add(cd);
+                    } catch (IntegrationException e) {
+                        logger.atInfo().log("qtcodereview: stage %s failed: %s", cd.getId(), e.getMessage());
+                        errors.put(cd.getId(), e.getMessage());
+                    }
+                }
+            }
+            if (picked.isEmpty()) return errors;
 
-             // send ref updated event only if it changed
-             if (!newStageRef.equals(oldStageRef)) {
-                 referenceUpdated.fire(projectKey, stagingBranchName, oldStageRef, newStageRef, user.state());
-             }
-         } catch (IOException e) {
-             logger.atSevere().log("qtcodereview: rebuild %s failed to update ref %s", stagingBranchKey, e);
-             throw new MergeConflictException("fatal: IOException");
-         }
+            Result result;
+            try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.REF)) {
+                session.flush();
+                result = updateRef(git, stagingBranchKey.get(), tip, oldId, false);
+            }
+            if (result == Result.FAST_FORWARD) break;
+
+            if (!isConcurrentUpdate(result) || attempt >= STAGING_UPDATE_ATTEMPTS) {
+                logger.atSevere().log("qtcodereview: stage failed to update %s: %s", stagingBranchKey, result);
+                throw new StagingUpdateException("Staging ref update failed: " + result);
+            }
+            qtMetrics.stagingUpdateRetries.increment();
+            oldId = git.resolve(stagingBranchKey.get());
+            if (oldId == null) throw new StagingUpdateException("Invalid Revision: " + stagingBranchKey.get());
+            logger.atInfo().log("qtcodereview: stage: %s moved, picking %d changes again on top of %s",
+                                stagingBranchKey, changes.size(), oldId.name());
+        }
+        referenceUpdated.fire(session.getProject(), stagingBranchKey.get(), oldId, tip, user.state());
+        QtTrace.detail("ref-updated %s %s -> %s, %d changes picked", stagingBranchKey.get(), oldId.name(),
+                       tip.name(), picked.size());
+
+        // the changes are marked staged only once their commits are in the staging ref
+        QtChangeUpdateOp op = qtUpdateFactory.create(Change.Status.STAGED, Change.Status.NEW,
+                                                     "Staged for CI", null, TAG_CI, null);
+        try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.DB);
+             BatchUpdate u = updateFactory.create(dbProvider.get(), session.getProject(), user, TimeUtil.nowTs())) {
+            for (ChangeData cd : picked) {
+                u.addOp(cd.getId(), op);
+            }
+            u.execute();
+        }
+        logger.atInfo().log("qtcodereview: staged %d changes to %s", picked.size(), stagingBranchKey);
+        return errors;
+    }
+
+    /**
+     * Finds changes on a branch for a set of Change-Ids. The keys are resolved
+     * with as few index queries as possible, each query OR'ing a batch of keys.
+     * @param branch Destination branch of the changes.
+     * @param keys Change-Ids to look up.
+     * @return Matching changes grouped by their Change-Id. Keys without any
+     *         change on the branch are not included.
+     * @throws OrmException Thrown if the index is not accessible.
+     */
+    public Map<Change.Key, List<ChangeData>> byBranchKeys(final Branch.NameKey branch,
+                                                          Iterable<Change.Key> keys)
+                                                          throws OrmException {
+        Map<Change.Key, List<ChangeData>> result = new HashMap<>();
+
+        // leave room for the project and ref terms of the query
+        int batchSize = Math.max(1, Math.min(CHANGE_KEY_QUERY_BATCH, indexConfig.maxTerms() - 2));
+
+        try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.QUERY)) {
+            for (List<Change.Key> batch : Iterables.partition(new LinkedHashSet<>(Lists.newArrayList(keys)), batchSize)) {
+                List<Predicate<ChangeData>> keyPredicates = new ArrayList<>(batch.size());
+                for (Change.Key key : batch) {
+                    keyPredicates.add(new ChangeIdPredicate(key.get()));
+                }
+
+                Predicate<ChangeData> query = Predicate.and(new ProjectPredicate(branch.getParentKey().get()),
+                                                            new RefPredicate(branch.get()),
+                                                            Predicate.or(keyPredicates));
+
+                QtTrace.count(QtTrace.Count.INDEX_QUERIES, 1);
+                for (ChangeData cd : queryProvider.get().setLimit(indexConfig.maxLimit()).query(query)) {
+                    Change.Key key = cd.change().getKey();
+                    // the index matches Change-Id prefixes, keep only exact matches
+                    if (!batch.contains(key)) continue;
+                    result.computeIfAbsent(key, k -> new ArrayList<>()).add(cd);
+                }
+            }
+        }
+
+        logger.atFine().log("qtcodereview: resolved %d changes on %s", result.size(), branch);
+        return result;
     }
 
     /**
      * Lists not merged changes between branches.
-     * @param git jGit Repository. Must be open.
-     * @param db ReviewDb of a Gerrit site.
+     * @param session Git session of the project.
      * @param branch Branch to search for the changes.
      * @param destination Destination branch for changes.
      * @return List of not merged changes.
@@ -509,48 +837,159 @@ public class QtUtil {
      *         accessible.
      * @throws OrmException Thrown if ReviewDb is not accessible.
      */
-    public List<Map.Entry<ChangeData,RevCommit>> listChangesNotMerged(Repository git,
+    public List<Map.Entry<ChangeData,RevCommit>> listChangesNotMerged(QtGitSession session,
                                                                       final Branch.NameKey branch,
                                                                       final Branch.NameKey destination)
                                                                       throws IOException, OrmException,
                                                                              BranchNotFoundException {
 
         List<Map.Entry<ChangeData, RevCommit>> result = new ArrayList<Map.Entry<ChangeData, RevCommit>>();
-        RevWalk revWalk = new RevWalk(git);
+        List<RevCommit> commits = new ArrayList<>();
+        List<Change.Key> keys = new ArrayList<>();
+        Repository git = session.getRepository();
+        RevWalk revWalk = session.getRevWalk();
 
-        try {
+        try (QtMetrics.PhaseTimer timer = qtMetrics.start(QtMetrics.Phase.WALK)) {
             Ref ref = git.getRefDatabase().getRef(branch.get());
             if (ref == null) throw new BranchNotFoundException("No such branch: " + branch);
             Ref refDest = git.getRefDatabase().getRef(destination.get());
             if (refDest == null) throw new BranchNotFoundException("No such branch: " + destination);
-            RevCommit firstCommit = revWalk.parseCommit(ref.getObjectId());
-            revWalk.markStart(firstCommit);
-            // Destination is the walker end point
-            revWalk.markUninteresting(revWalk.parseCommit(refDest.getObjectId()));
+            listChangeKeys(revWalk, session.getChangeIds(), ref.getObjectId(), refDest.getObjectId(), commits, keys);
+        }
+
+        // Resolve all the changes at once and join them back in the walk order
+        Map<Change.Key, List<ChangeData>> changesByKey = byBranchKeys(destination, keys);
+        for (int n = 0; n < commits.size(); n++) {
+            List<ChangeData> changes = changesByKey.get(keys.get(n));
+            if (changes != null && !changes.isEmpty()) {
+                RevCommit commit = commits.get(n);
+                if (changes.size() > 1) logger.atWarning().log("qtcodereview: commit belongs to multiple changes: %s", commit.name());
+                ChangeData cd = changes.get(0);
+                result.add(new AbstractMap.SimpleEntry<ChangeData,RevCommit>(cd, commit));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lists the commits with a Change-Id between two commits, newest first.
+     * @param revWalk Walk to use, it is reset afterwards.
+     * @param changeIds Change-Id lookup of the repository.
+     * @param tip Commit to start from.
+     * @param base Commit the walk ends to, its history is not listed.
+     * @param commits Receives the commits that have a Change-Id.
+     * @param keys Receives the Change-Ids of the commits.
+     * @throws IOException Thrown if the commits cannot be read.
+     */
+    static void listChangeKeys(RevWalk revWalk,
+                               QtChangeIdIndex.Lookup changeIds,
+                               ObjectId tip,
+                               ObjectId base,
+                               List<RevCommit> commits,
+                               List<Change.Key> keys)
+                               throws IOException {
+        try {
+            revWalk.reset();
+            revWalk.markStart(revWalk.parseCommit(tip));
+            // Base is the walker end point
+            revWalk.markUninteresting(revWalk.parseCommit(base));
 
             Iterator<RevCommit> i = revWalk.iterator();
             while (i.hasNext()) {
                 RevCommit commit = i.next();
-                String changeId = getChangeId(commit);
-                List<ChangeData> changes = null;
-
+                QtTrace.count(QtTrace.Count.COMMITS_WALKED, 1);
+                String changeId = changeIds.getChangeId(revWalk, commit);
                 if (changeId != null) {
-                    Change.Key key = new Change.Key(changeId);
-                    changes = queryProvider.get().byBranchKey(destination, key);
+                    commits.add(commit);
+                    keys.add(new Change.Key(changeId));
                 }
+            }
+        } finally {
+            revWalk.reset();
+        }
+    }
 
-                if (changes != null && !changes.isEmpty()) {
-                    if (changes.size() > 1) logger.atWarning().log("qtcodereview: commit belongs to multiple changes: %s", commit.name());
-                    ChangeData cd = changes.get(0);
-                    result.add(new AbstractMap.SimpleEntry<ChangeData,RevCommit>(cd, commit));
-                }
+    /**
+     * Checks if a commit is reachable from another. Only the commits between
+     * the two are walked, see getMergeBase().
+     * @param session Git session of the project.
+     * @param ancestor Commit that should be reachable.
+     * @param tip Commit to start from.
+     * @return True if ancestor is reachable from tip, or if they are equal.
+     * @throws IOException Thrown if the commits cannot be read.
+     */
+    public static boolean isAncestor(QtGitSession session,
+                                     ObjectId ancestor,
+                                     ObjectId tip)
+                                     throws IOException {
+        RevWalk revWalk = session.getRevWalk();
+        RevCommit ancestorCommit = revWalk.parseCommit(ancestor);
+        return ancestorCommit.equals(getMergeBase(revWalk, ancestorCommit, revWalk.parseCommit(tip)));
+    }
+
+    /**
+     * Lists the commits on the first parent line of a tip down to a base.
+     * @param session Git session of the project.
+     * @param tip Commit to start from.
+     * @param base Commit where to stop, it is not included.
+     * @return Commits that are not in base, bottom first.
+     * @throws IOException Thrown if the commits cannot be read.
+     */
+    public static List<RevCommit> listFirstParents(QtGitSession session,
+                                                   ObjectId tip,
+                                                   ObjectId base)
+                                                   throws IOException {
+        List<RevCommit> result = new ArrayList<>();
+        RevWalk revWalk = session.getRevWalk();
+        RevFlag notInBase = revWalk.newFlag("NOT_IN_BASE");
+        try {
+            revWalk.reset();
+            revWalk.markStart(revWalk.parseCommit(tip));
+            revWalk.markUninteresting(revWalk.parseCommit(base));
+            int walked = 0;
+            for (RevCommit commit : revWalk) {
+                commit.add(notInBase);
+                walked++;
+            }
+            QtTrace.count(QtTrace.Count.COMMITS_WALKED, walked);
+
+            RevCommit commit = revWalk.parseCommit(tip);
+            while (commit != null && commit.has(notInBase)) {
+                result.add(commit);
+                commit = commit.getParentCount() > 0 ? commit.getParent(0) : null;
             }
         } finally {
-            revWalk.dispose();
+            revWalk.disposeFlag(notInBase);
+            revWalk.reset();
         }
+        Collections.reverse(result);
         return result;
     }
 
+    /**
+     * Finds the merge base of two commits. The walk stops at the base, so only
+     * the commits that are in one of the commits but not in the other are
+     * walked, instead of the whole history as with RevWalk.isMergedInto().
+     * @param revWalk Walk to use, it is reset afterwards.
+     * @param a One commit.
+     * @param b The other commit.
+     * @return The merge base, null if there is none or more than one.
+     * @throws IOException Thrown if the commits cannot be read.
+     */
+    static RevCommit getMergeBase(RevWalk revWalk, RevCommit a, RevCommit b) throws IOException {
+        try {
+            revWalk.reset();
+            revWalk.setRevFilter(RevFilter.MERGE_BASE);
+            revWalk.markStart(a);
+            revWalk.markStart(b);
+            RevCommit base = revWalk.next();
+            return base != null && revWalk.next() == null ? base : null;
+        } finally {
+            revWalk.reset();
+            revWalk.setRevFilter(RevFilter.ALL);
+        }
+    }
+
     public static RevCommit merge(PersonIdent committerIdent,
                                   Repository git,
                                   ObjectInserter objInserter,
@@ -560,13 +999,24 @@ public class QtUtil {
                                   boolean mergeAlways)
                                   throws NoSuchRefException, IOException, MergeConflictException {
 
-        if (revWalk.isMergedInto(toMerge, mergeTip)) {
+        RevCommit mergeBase = getMergeBase(revWalk, toMerge, mergeTip);
+        if (toMerge.equals(mergeBase)) {
             logger.atWarning().log("qtcodereview: commit %s already in %s", toMerge, mergeTip);
             return mergeTip; // already up to date
         }
-
-        ThreeWayMerger merger = MergeStrategy.RESOLVE.newMerger(git, true);
-        if (!merger.merge(mergeTip, toMerge)) {
+        if (!mergeAlways && mergeTip.equals(mergeBase)) {
+            // toMerge descends from mergeTip, as a build ref does from its branch
+            logger.atInfo().log("qtcodereview: merge fast forward %s on top of %s", toMerge, mergeTip);
+            return toMerge;
+        }
+        revWalk.parseBody(toMerge);
+
+        // merge through the inserter, so that objects not yet flushed can be used and
+        // the result is flushed together with the rest of the operation
+        ThreeWayMerger merger = (ThreeWayMerger) MergeStrategy.RESOLVE.newMerger(objInserter, git.getConfig());
+        if (mergeBase != null) merger.setBase(mergeBase);
+        QtTrace.count(QtTrace.Count.TREES_MERGED, 1);
+        if (!merger.merge(false, mergeTip, toMerge)) {
             logger.atWarning().log("qtcodereview: merge conflict %s on top of %s", toMerge, mergeTip);
             throw new MergeConflictException("Merge conflict");
         }
@@ -579,7 +1029,7 @@ public class QtUtil {
 
         String message;
         try {
-            message = revWalk.parseCommit(toMerge).getShortMessage();
+            message = toMerge.getShortMessage();
         } catch (Exception e) {
             message = toMerge.toString();
         }
@@ -595,46 +1045,54 @@ public class QtUtil {
         return revWalk.parseCommit(objInserter.insert(mergeCommit));
     }
 
-    public static RefUpdate.Result mergeBranches(IdentifiedUser user,
-                                                 Repository git,
-                                                 final Branch.NameKey branch,
-                                                 final Branch.NameKey destination)
-                                                 throws NoSuchRefException, IOException, MergeConflictException {
+    public RefUpdate.Result mergeBranches(IdentifiedUser user,
+                                          QtGitSession session,
+                                          final Branch.NameKey branch,
+                                          final Branch.NameKey destination)
+                                          throws NoSuchRefException, IOException, MergeConflictException {
 
-        ObjectId srcId = git.resolve(branch.get());
+        ObjectId srcId = session.getRepository().resolve(branch.get());
         if (srcId == null) throw new NoSuchRefException("Invalid Revision: " + branch);
 
-        return mergeObjectToBranch(user, git, srcId, destination);
+        return mergeObjectToBranch(user, session, srcId, destination);
     }
 
-    private static RefUpdate.Result mergeObjectToBranch(IdentifiedUser user,
-                                                        Repository git,
-                                                        ObjectId srcId,
-                                                        final Branch.NameKey destination)
-                                                        throws NoSuchRefException, IOException, MergeConflictException {
+    private RefUpdate.Result mergeObjectToBranch(IdentifiedUser user,
+                                                 QtGitSession session,
+                                                 ObjectId srcId,
+                                                 final Branch.NameKey destination)
+                                                 throws NoSuchRefException, IOException, MergeConflictException {
 
+        Repository git = session.getRepository();
         Ref destRef = git.getRefDatabase().getRef(destination.get());
         if (destRef == null) throw new NoSuchRefException("No such branch: " + destination);
 
         ObjectId destId = git.resolve(destination.get());
         if (destId == null) throw new NoSuchRefException("Invalid Revision: " + destination);
 
-        RevWalk revWalk = new RevWalk(git);
+        RevWalk revWalk = session.getRevWalk();
         try {
 
-            ObjectInserter objInserter = git.newObjectInserter();
+            ObjectInserter objInserter = session.getInserter();
             RevCommit mergeTip = revWalk.lookupCommit(destId);
             RevCommit toMerge = revWalk.lookupCommit(srcId);
             PersonIdent committer = user.newCommitterIdent(new Timestamp(System.currentTimeMillis()), TimeZone.getDefault());
 
-            RevCommit mergeCommit = merge(committer,
-                                          git,
-                                          objInserter,
-                                          revWalk,
-                                          toMerge,
-                                          mergeTip,
-                                          false);
-            objInserter.flush();
+            RevCommit mergeCommit;
+            try (QtMetrics.OperationTimer timer = qtMetrics.start(QtMetrics.Operation.MERGE)) {
+                mergeCommit = merge(committer,
+                                    git,
+                                    objInserter,
+                                    revWalk,
+                                    toMerge,
+                                    mergeTip,
+                                    false);
+                timer.succeeded();
+            } catch (MergeConflictException e) {
+                qtMetrics.conflicts.increment(QtMetrics.Operation.MERGE);
+                throw e;
+            }
+            session.flush();
             logger.atInfo().log("qtcodereview: merge commit for %s added to %s", srcId, destination);
 
             RefUpdate refUpdate = git.updateRef(destination.get());
@@ -644,7 +1102,7 @@ public class QtUtil {
             logger.atWarning().log("qtcodereview: merge failed, %s", e);
             return null;
         } finally {
-            revWalk.dispose();
+            revWalk.reset();
         }
     }
 
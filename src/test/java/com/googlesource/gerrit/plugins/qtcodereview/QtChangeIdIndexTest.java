@@ -0,0 +1,268 @@
+// Copyright (C) 2019 The Qt Company
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QtChangeIdIndexTest {
+
+    private static final PersonIdent IDENT = new PersonIdent("Qt Test", "test@qt.io", 1546300800000L, 0);
+    private static final String CHANGE_ID = "I0123456789abcdef0123456789abcdef01234567";
+    private static final long INITIAL_SIZE = QtChangeIdIndex.Table.HEADER
+                                             + (long) QtChangeIdIndex.Table.INITIAL_SLOTS * QtChangeIdIndex.Table.SLOT;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryRepository repo;
+    private InMemoryRepository emptyRepo;
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+        emptyRepo = new InMemoryRepository(new DfsRepositoryDescription("empty"));
+        file = folder.getRoot().toPath().resolve("test.idx");
+    }
+
+    @After
+    public void tearDown() {
+        repo.close();
+        emptyRepo.close();
+    }
+
+    @Test
+    public void lookupAfterReopen() throws Exception {
+        ObjectId commit = commit("Subject\n\nChange-Id: " + CHANGE_ID + "\n");
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookup(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+
+        table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookupIndexed(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+    }
+
+    @Test
+    public void commitWithoutChangeId() throws Exception {
+        ObjectId commit = commit("Subject\n\nNo footers here.\n");
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookup(table, commit)).isNull();
+        table.close();
+
+        // recorded as having no Change-Id, not parsed again
+        table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookupIndexed(table, commit)).isNull();
+        table.close();
+    }
+
+    @Test
+    public void nonCanonicalChangeIdIsParsed() throws Exception {
+        String upperCase = "I0123456789ABCDEF0123456789ABCDEF01234567";
+        ObjectId upperCaseCommit = commit("Upper case\n\nChange-Id: " + upperCase + "\n");
+        ObjectId shortCommit = commit("Short\n\nChange-Id: Ideadbeef\n");
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookup(table, upperCaseCommit)).isEqualTo(upperCase);
+        assertThat(lookup(table, shortCommit)).isEqualTo("Ideadbeef");
+
+        // not in the index, so the commits are parsed again every time
+        assertNotIndexed(table, upperCaseCommit);
+        assertNotIndexed(table, shortCommit);
+        assertThat(lookup(table, upperCaseCommit)).isEqualTo(upperCase);
+        table.close();
+    }
+
+    @Test
+    public void growPastThreeQuarters() throws Exception {
+        int count = QtChangeIdIndex.Table.INITIAL_SLOTS * 3 / 4 + 1;
+        List<ObjectId> commits = new ArrayList<>();
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            for (int i = 0; i < count; i++) {
+                commits.add(commit(ins, String.format("Change %d\n\nChange-Id: I%040x\n", i, i)));
+            }
+            ins.flush();
+        }
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        try (RevWalk rw = new RevWalk(repo)) {
+            for (ObjectId commit : commits) {
+                table.getChangeId(rw, rw.parseCommit(commit));
+            }
+        }
+        table.close();
+        assertThat(Files.size(file)).isEqualTo(QtChangeIdIndex.Table.HEADER
+                                               + 2L * QtChangeIdIndex.Table.INITIAL_SLOTS * QtChangeIdIndex.Table.SLOT);
+
+        // every commit is found after the rehash, also the ones added before it
+        table = QtChangeIdIndex.Table.open(file);
+        for (int i = 0; i < count; i++) {
+            assertThat(lookupIndexed(table, commits.get(i))).isEqualTo(String.format("I%040x", i));
+        }
+        table.close();
+    }
+
+    @Test
+    public void badMagicFileIsRecreated() throws Exception {
+        Files.write(file, new byte[(int) INITIAL_SIZE]);
+        ObjectId commit = commit("Subject\n\nChange-Id: " + CHANGE_ID + "\n");
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookup(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+
+        table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookupIndexed(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+    }
+
+    @Test
+    public void truncatedFileIsRecreated() throws Exception {
+        ObjectId commit = commit("Subject\n\nChange-Id: " + CHANGE_ID + "\n");
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookup(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(INITIAL_SIZE / 2);
+        }
+
+        table = QtChangeIdIndex.Table.open(file);
+        assertThat(Files.size(file)).isEqualTo(INITIAL_SIZE);
+        assertNotIndexed(table, commit);
+        assertThat(lookup(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+    }
+
+    @Test
+    public void halfWrittenSlotIsParsedAgain() throws Exception {
+        ObjectId commit = commit("Subject\n\nChange-Id: " + CHANGE_ID + "\n");
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookup(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+
+        // as if the Change-Id had not reached the disk before a crash
+        long changeIdOffset = findSlot(commit) + Constants.OBJECT_ID_LENGTH + 1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[Constants.OBJECT_ID_LENGTH]), changeIdOffset);
+        }
+
+        table = QtChangeIdIndex.Table.open(file);
+        assertNotIndexed(table, commit);
+        assertThat(lookup(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+
+        // the slot is written again
+        table = QtChangeIdIndex.Table.open(file);
+        assertThat(lookupIndexed(table, commit)).isEqualTo(CHANGE_ID);
+        table.close();
+    }
+
+    @Test
+    public void failedGrowKeepsTable() throws Exception {
+        int count = QtChangeIdIndex.Table.INITIAL_SLOTS * 3 / 4 + 1;
+        List<ObjectId> commits = new ArrayList<>();
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            for (int i = 0; i < count; i++) {
+                commits.add(commit(ins, String.format("Change %d\n\nChange-Id: I%040x\n", i, i)));
+            }
+            ins.flush();
+        }
+        // the new file cannot be created in place of a directory
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(tmp);
+        Files.createFile(tmp.resolve("blocker"));
+
+        QtChangeIdIndex.Table table = QtChangeIdIndex.Table.open(file);
+        try (RevWalk rw = new RevWalk(repo)) {
+            for (int i = 0; i < count; i++) {
+                assertThat(table.getChangeId(rw, rw.parseCommit(commits.get(i)))).isEqualTo(String.format("I%040x", i));
+            }
+        }
+        assertThat(lookupIndexed(table, commits.get(0))).isEqualTo(String.format("I%040x", 0));
+        assertNotIndexed(table, commits.get(count - 1));
+        table.close();
+        assertThat(Files.size(file)).isEqualTo(INITIAL_SIZE);
+    }
+
+    private long findSlot(ObjectId commit) throws IOException {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        commit.copyRawTo(raw, 0);
+        byte[] data = Files.readAllBytes(file);
+        for (int slot = QtChangeIdIndex.Table.HEADER; slot < data.length; slot += QtChangeIdIndex.Table.SLOT) {
+            if (Arrays.equals(raw, Arrays.copyOfRange(data, slot, slot + raw.length))) return slot;
+        }
+        throw new AssertionError("commit " + commit.name() + " not in the index file");
+    }
+
+    private ObjectId commit(String message) throws IOException {
+        try (ObjectInserter ins = repo.newObjectInserter()) {
+            ObjectId id = commit(ins, message);
+            ins.flush();
+            return id;
+        }
+    }
+
+    private static ObjectId commit(ObjectInserter ins, String message) throws IOException {
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(ins.insert(new TreeFormatter()));
+        commit.setAuthor(IDENT);
+        commit.setCommitter(IDENT);
+        commit.setMessage(message);
+        return ins.insert(commit);
+    }
+
+    private String lookup(QtChangeIdIndex.Table table, ObjectId commit) throws IOException {
+        try (RevWalk rw = new RevWalk(repo)) {
+            return table.getChangeId(rw, rw.parseCommit(commit));
+        }
+    }
+
+    /** Looks up a commit that cannot be parsed, so only the index can answer. */
+    private String lookupIndexed(QtChangeIdIndex.Table table, ObjectId commit) throws IOException {
+        try (RevWalk rw = new RevWalk(emptyRepo)) {
+            return table.getChangeId(rw, rw.lookupCommit(commit));
+        }
+    }
+
+    private void assertNotIndexed(QtChangeIdIndex.Table table, ObjectId commit) throws IOException {
+        try {
+            lookupIndexed(table, commit);
+            fail("commit " + commit.name() + " found in the index");
+        } catch (MissingObjectException e) {
+            // parsed, as expected
+        }
+    }
+}
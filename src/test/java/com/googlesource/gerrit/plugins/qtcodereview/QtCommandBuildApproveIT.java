@@ -17,6 +17,7 @@ import com.google.gerrit.reviewdb.client.ChangeMessage;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.io.StringBufferInputStream;
 
 import org.junit.Before;
@@ -110,6 +111,186 @@ public class QtCommandBuildApproveIT extends QtCodeReviewIT {
         assertStatusNew(c2.getChange().change());
     }
 
+    @Test
+    public void multiChange_New_Staged_Integrating_Bisect() throws Exception {
+        // Push 3 independent commits
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c3 = pushCommit("master", "commitmsg3", "file3", "content3");
+
+        approve(c1.getChangeId());
+        approve(c2.getChangeId());
+        approve(c3.getChangeId());
+        QtStage(c1);
+        QtStage(c2);
+        QtStage(c3);
+
+        QtNewBuild("master", "test-build-202");
+
+        String commandStr;
+        commandStr ="gerrit-plugin-qt-workflow staging-approve";
+        commandStr += " --project " + project.get();
+        commandStr += " --branch master";
+        commandStr += " --build-id test-build-202";
+        commandStr += " --result fail";
+        commandStr += " --bisect";
+        commandStr += " --message " + FAILED_MSG;
+        String resultStr = adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+        assertThat(resultStr).contains(R_BUILDS + "test-build-202/a");
+        assertThat(resultStr).contains(R_BUILDS + "test-build-202/b");
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(initialHead); // master is not updated
+        assertThat(getRemoteHead(project, R_BUILDS + "test-build-202")).isNull(); // replaced by the halves
+
+        RevCommit buildA = getRemoteHead(project, R_BUILDS + "test-build-202/a");
+        assertCherryPick(buildA, c1.getCommit(), initialHead);
+        List<RevCommit> buildB = getRemoteLog(R_BUILDS + "test-build-202/b");
+        assertCherryPick(buildB.get(0), c3.getCommit(), buildB.get(1));
+        assertCherryPick(buildB.get(1), c2.getCommit(), initialHead);
+
+        assertStatusIntegrating(c1.getChange().change());
+        assertStatusIntegrating(c2.getChange().change());
+        assertStatusIntegrating(c3.getChange().change());
+
+        // the first half passes on its own
+        commandStr ="gerrit-plugin-qt-workflow staging-approve";
+        commandStr += " --project " + project.get();
+        commandStr += " --branch master";
+        commandStr += " --build-id test-build-202/a";
+        commandStr += " --result pass";
+        commandStr += " --message " + MERGED_MSG;
+        adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+
+        RevCommit updatedHead = getRemoteHead(project, R_HEADS + "master");
+        assertThat(updatedHead).isEqualTo(buildA); // master is fast forwarded
+        assertStatusMerged(c1.getChange().change());
+        assertStatusIntegrating(c2.getChange().change());
+        assertStatusIntegrating(c3.getChange().change());
+
+        // staging is rebuilt on top of the new branch head
+        List<RevCommit> staging = getRemoteLog(R_STAGING + "master");
+        assertCherryPick(staging.get(0), c3.getCommit(), staging.get(1));
+        assertCherryPick(staging.get(1), c2.getCommit(), updatedHead);
+
+        // the second half was not tested on top of the first one, it is rebased instead of merged
+        commandStr ="gerrit-plugin-qt-workflow staging-approve";
+        commandStr += " --project " + project.get();
+        commandStr += " --branch master";
+        commandStr += " --build-id test-build-202/b";
+        commandStr += " --result pass";
+        commandStr += " --message " + MERGED_MSG;
+        adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).contains("must be built again");
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(updatedHead); // master is not updated
+        buildB = getRemoteLog(R_BUILDS + "test-build-202/b");
+        assertCherryPick(buildB.get(0), c3.getCommit(), buildB.get(1));
+        assertCherryPick(buildB.get(1), c2.getCommit(), updatedHead);
+        assertStatusIntegrating(c2.getChange().change());
+        assertStatusIntegrating(c3.getChange().change());
+
+        // the rebased build passes
+        adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(buildB.get(0)); // master is fast forwarded
+        assertStatusMerged(c2.getChange().change());
+        assertStatusMerged(c3.getChange().change());
+    }
+
+    @Test
+    public void multiChange_New_Staged_Integrating_SpeculativeMerged() throws Exception {
+        // Push 3 independent commits
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c3 = pushCommit("master", "commitmsg3", "file3", "content3");
+
+        approve(c1.getChangeId());
+        approve(c2.getChangeId());
+        approve(c3.getChangeId());
+        QtStage(c1);
+        QtStage(c2);
+        QtStage(c3);
+        RevCommit stagingHead = getRemoteHead(project, R_STAGING + "master");
+
+        String commandStr;
+        commandStr ="gerrit-plugin-qt-workflow staging-new-build";
+        commandStr += " --project " + project.get();
+        commandStr += " --staging-branch master";
+        commandStr += " --build-id test-build-203";
+        commandStr += " --prefix 1";
+        commandStr += " --prefix 2";
+        commandStr += " --prefix 3";
+        String resultStr = adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+        assertThat(resultStr).contains(R_BUILDS + "test-build-203.1");
+        assertThat(resultStr).contains(R_BUILDS + "test-build-203.2");
+        assertThat(resultStr).doesNotContain(R_BUILDS + "test-build-203.3"); // same as the whole build
+
+        List<RevCommit> build = getRemoteLog(R_BUILDS + "test-build-203");
+        RevCommit speculativeHead = getRemoteHead(project, R_BUILDS + "test-build-203.2");
+        assertThat(speculativeHead).isEqualTo(build.get(1));
+        assertCherryPick(speculativeHead, c2.getCommit(), null);
+
+        // the longest passing speculative build is approved
+        commandStr ="gerrit-plugin-qt-workflow staging-approve";
+        commandStr += " --project " + project.get();
+        commandStr += " --branch master";
+        commandStr += " --build-id test-build-203.2";
+        commandStr += " --result pass";
+        commandStr += " --message " + MERGED_MSG;
+        adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(speculativeHead);
+        assertStatusMerged(c1.getChange().change());
+        assertStatusMerged(c2.getChange().change());
+        assertStatusStaged(c3.getChange().change());
+
+        assertThat(getRemoteHead(project, R_BUILDS + "test-build-203.2")).isNotNull();
+        assertThat(getRemoteHead(project, R_BUILDS + "test-build-203.1")).isNull();
+        assertThat(getRemoteHead(project, R_BUILDS + "test-build-203")).isNull();
+        assertThat(getRemoteHead(project, R_STAGING + "master")).isEqualTo(stagingHead); // staging remains the same
+    }
+
+    @Test
+    public void multiChange_New_Staged_Integrating_SpeculativeName() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+
+        approve(c1.getChangeId());
+        approve(c2.getChangeId());
+        QtStage(c1);
+        QtNewBuild("master", "test-build-608");
+        QtStage(c2);
+        // named like a speculative build of the first build, but created by the CI
+        QtNewBuild("master", "test-build-608.1");
+
+        String commandStr;
+        commandStr ="gerrit-plugin-qt-workflow staging-approve";
+        commandStr += " --project " + project.get();
+        commandStr += " --branch master";
+        commandStr += " --build-id test-build-608.1";
+        commandStr += " --result pass";
+        commandStr += " --message " + MERGED_MSG;
+        adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+
+        assertStatusMerged(c1.getChange().change());
+        assertStatusMerged(c2.getChange().change());
+        assertThat(getRemoteHead(project, R_BUILDS + "test-build-608")).isNotNull(); // not released as its base
+    }
+
     @Test
     public void errorApproveBuild_NoPermission() throws Exception {
         PushOneCommit.Result c = pushCommit("master", "commitmsg1", "file1", "content1");
@@ -229,6 +410,35 @@ public class QtCommandBuildApproveIT extends QtCodeReviewIT {
         assertThat(change.getStatus()).isEqualTo(Change.Status.MERGED);
     }
 
+    @Test
+    public void errorApproveBuild_FastForwardFail_BisectName() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c = pushCommit("master", "commitmsg1", "file1", "content1");
+        approve(c.getChangeId());
+        QtStage(c);
+        // named like a bisect build, but created by the CI
+        QtNewBuild("master", "test-build-607/b");
+
+        testRepo.reset(initialHead);
+        PushOneCommit.Result d = pushCommit("master", "commitmsg2", "file2", "content2");
+        approve(d.getChangeId());
+        gApi.changes().id(d.getChangeId()).current().submit();
+        RevCommit branchHead = getRemoteHead();
+
+        String commandStr;
+        commandStr ="gerrit-plugin-qt-workflow staging-approve";
+        commandStr += " --project " + project.get();
+        commandStr += " --branch master";
+        commandStr += " --build-id test-build-607/b";
+        commandStr += " --result pass";
+        commandStr += " --message " + MERGED_MSG;
+        adminSshSession.exec(commandStr);
+        assertThat(adminSshSession.getError()).isNull();
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(branchHead); // master is not updated
+        assertStatusNew(c.getChange().change());
+    }
+
     @Test
     public void approveBuild_MultiLineMessage() throws Exception {
         PushOneCommit.Result c = pushCommit("master", "commitmsg1", "file1", "content1");
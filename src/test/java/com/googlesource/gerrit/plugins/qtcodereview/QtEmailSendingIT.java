@@ -7,6 +7,7 @@ package com.googlesource.gerrit.plugins.qtcodereview;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
 
+import com.google.gerrit.acceptance.GerritConfig;
 import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.RestResponse;
 import com.google.gerrit.acceptance.TestPlugin;
@@ -18,6 +19,8 @@ import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.server.project.ProjectConfig;
 import com.google.gerrit.server.project.testing.Util;
 import com.google.gerrit.testing.FakeEmailSender;
+import java.util.List;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -110,6 +113,54 @@ public class QtEmailSendingIT extends QtCodeReviewIT {
         assertThat(m.body()).contains(BUILD_FAIL_MESSAGE);
     }
 
+    @Test
+    @GerritConfig(name = "plugin.gerrit-plugin-qt-workflow.asyncNotifications", value = "true")
+    public void stagedByOwnerBuildFail_AsyncNotifications() throws Exception {
+        PushOneCommit.Result c = pushCommit("master", "commitmsg1", "file1", "content1");
+        approve(c.getChangeId());
+        QtStage(c);
+        QtNewBuild("master", "test_build_05");
+        sender.clear();
+        QtFailBuild("master", "test_build_05");
+
+        // the email is sent from the outbox in the background
+        for (int i = 0; i < 100 && sender.getMessages(c.getChangeId(), "comment").isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        FakeEmailSender.Message m = sender.getMessages(c.getChangeId(), "comment").get(0);
+        Address expectedTo = new Address(user.fullName, user.email);
+        assertThat(m.rcpt()).containsExactly(expectedTo);
+        assertThat(m.body()).contains(c.getChangeId());
+        assertThat(m.body()).contains(BUILD_FAIL_MESSAGE);
+    }
+
+    @Test
+    @GerritConfig(name = "plugin.gerrit-plugin-qt-workflow.digestEmails", value = "true")
+    public void multiChange_BuildFail_DigestEmail() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+        approve(c1.getChangeId());
+        QtStage(c1);
+        approve(c2.getChangeId());
+        QtStage(c2);
+        QtNewBuild("master", "test_build_06");
+        sender.clear();
+        QtFailBuild("master", "test_build_06");
+
+        // one email to the owner of both changes
+        List<FakeEmailSender.Message> messages = sender.getMessages();
+        assertThat(messages).hasSize(1);
+        FakeEmailSender.Message m = messages.get(0);
+        Address expectedTo = new Address(user.fullName, user.email);
+        assertThat(m.rcpt()).containsExactly(expectedTo);
+        assertThat(m.body()).contains("test_build_06");
+        assertThat(m.body()).contains(c1.getChangeId());
+        assertThat(m.body()).contains(c2.getChangeId());
+        assertThat(m.body()).contains(BUILD_FAIL_MESSAGE);
+    }
+
     private void QtStageByAdmin(PushOneCommit.Result c) throws Exception {
         RestResponse response = call_REST_API_Stage_By_Admin(c.getChangeId(), c.getCommit().getName());
         response.assertOK();
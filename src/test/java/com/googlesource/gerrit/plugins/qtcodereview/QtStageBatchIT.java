@@ -0,0 +1,123 @@
+// Copyright (C) 2019 The Qt Company
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.TestPlugin;
+import com.google.gerrit.acceptance.UseSsh;
+
+import com.google.gerrit.common.data.Permission;
+import com.google.gerrit.reviewdb.client.ChangeMessage;
+
+import org.apache.http.HttpStatus;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@TestPlugin(
+    name = "gerrit-plugin-qt-workflow",
+    sysModule = "com.googlesource.gerrit.plugins.qtcodereview.QtModule",
+    sshModule = "com.googlesource.gerrit.plugins.qtcodereview.QtSshModule"
+)
+
+@UseSsh
+public class QtStageBatchIT extends QtCodeReviewIT {
+
+    private final String STAGED_MSG = "Staged for CI";
+
+    @Before
+    public void SetDefaultPermissions() throws Exception {
+        grant(project, "refs/heads/master", Permission.QT_STAGE, false, REGISTERED_USERS);
+    }
+
+    @Test
+    public void multiChange_StageBatch() throws Exception {
+        // Push 3 independent commits
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c3 = pushCommit("master", "commitmsg3", "file3", "content3");
+
+        approve(c1.getChangeId());
+        approve(c2.getChangeId());
+        approve(c3.getChangeId());
+
+        RestResponse response = call_REST_API_StageBatch("master", c1.getChangeId(),
+                                                         c2.getChangeId() + "," + c2.getCommit().getName(),
+                                                         c3.getChangeId());
+        response.assertOK();
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(initialHead); // master is not updated
+
+        List<RevCommit> staging = getRemoteLog(R_STAGING + "master");
+        assertCherryPick(staging.get(0), c3.getCommit(), staging.get(1));
+        assertCherryPick(staging.get(1), c2.getCommit(), staging.get(2));
+        assertCherryPick(staging.get(2), c1.getCommit(), initialHead);
+        assertReviewedByFooter(staging.get(0), true);
+
+        // one staging ref update for the whole batch
+        assertRefUpdatedEvents(R_STAGING + "master", initialHead, staging.get(0));
+        resetEvents();
+
+        assertStatusStaged(c1.getChange().change());
+        assertStatusStaged(c2.getChange().change());
+        assertStatusStaged(c3.getChange().change());
+
+        ArrayList<ChangeMessage> messages = new ArrayList(c3.getChange().messages());
+        assertThat(messages.get(messages.size()-1).getMessage()).isEqualTo(STAGED_MSG); // check last message
+    }
+
+    @Test
+    public void multiChange_StageBatch_SkipNotApproved() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+
+        approve(c1.getChangeId());
+
+        RestResponse response = call_REST_API_StageBatch("master", c2.getChangeId(), c1.getChangeId());
+        response.assertOK();
+        String result = response.getEntityContent().replaceAll("\\s", "");
+        assertThat(result).contains(c1.getChangeId() + "\":{\"staged\":true");
+        assertThat(result).contains(c2.getChangeId() + "\":{\"staged\":false");
+
+        RevCommit stagingHead = getRemoteHead(project, R_STAGING + "master");
+        assertCherryPick(stagingHead, c1.getCommit(), initialHead);
+
+        assertStatusStaged(c1.getChange().change());
+        assertStatusNew(c2.getChange().change());
+    }
+
+    @Test
+    public void errorStageBatch_NoChanges() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+
+        RestResponse response = call_REST_API_StageBatch("master");
+        response.assertStatus(HttpStatus.SC_BAD_REQUEST);
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(initialHead);
+        assertThat(getRemoteHead(project, R_STAGING + "master")).isNull();
+    }
+
+    private RestResponse call_REST_API_StageBatch(String branch, String... changes) throws Exception {
+        String url = "/projects/" + project.get() + "/branches/" + branch + "/gerrit-plugin-qt-workflow~stage";
+        QtStageBatch.Input input = new QtStageBatch.Input();
+        input.changes = Arrays.asList(changes);
+        RestResponse response = userRestSession.post(url, input);
+        return response;
+    }
+
+}
@@ -9,9 +9,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.gerrit.acceptance.LightweightPluginDaemonTest;
 import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.RestSession;
 import com.google.gerrit.acceptance.TestPlugin;
 import com.google.gerrit.acceptance.UseSsh;
 
+import com.google.gerrit.common.FooterConstants;
 import com.google.gerrit.common.data.Permission;
 import com.google.gerrit.extensions.api.changes.SubmitInput;
 import com.google.gerrit.reviewdb.client.Branch;
@@ -23,6 +25,12 @@ import org.apache.http.HttpStatus;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -257,6 +265,88 @@ public class QtStageIT extends QtCodeReviewIT {
         assertStatusNew(c2.getChange().change());
     }
 
+    @Test
+    public void multiBranch_Concurrent_Stage_UnStage() throws Exception {
+        String[] branches = {"master", "feature", "feature2", "feature3"};
+        createBranch(new Branch.NameKey(project, "feature2"));
+        createBranch(new Branch.NameKey(project, "feature3"));
+        grant(project, "refs/heads/*", Permission.QT_STAGE, false, REGISTERED_USERS);
+
+        RevCommit initialHead = getRemoteHead();
+        List<PushOneCommit.Result> changes = new ArrayList<>();
+        for (String branch : branches) {
+            for (int i = 0; i < 5; i++) {
+                testRepo.reset(initialHead);
+                PushOneCommit.Result c = pushCommit(branch, "commitmsg " + branch + i, branch + "file" + i, "content");
+                approve(c.getChangeId());
+                changes.add(c);
+            }
+        }
+
+        // every request has its own session, the views are shared by all of them
+        runConcurrently(changes, c -> call_REST_API_Stage(c.getChangeId(), c.getCommit().getName(),
+                                                          new RestSession(server, user)));
+        for (PushOneCommit.Result c : changes) {
+            assertStatusStaged(c.getChange().change());
+        }
+        assertStagingRefs(branches, changes);
+
+        List<PushOneCommit.Result> unstaged = new ArrayList<>();
+        List<PushOneCommit.Result> staged = new ArrayList<>();
+        for (int i = 0; i < changes.size(); i++) {
+            (i % 2 == 0 ? unstaged : staged).add(changes.get(i));
+        }
+        runConcurrently(unstaged, c -> new RestSession(server, user).post(
+            "/changes/" + c.getChangeId() + "/revisions/" + getCurrentPatchId(c)
+            + "/gerrit-plugin-qt-workflow~unstage"));
+        for (PushOneCommit.Result c : unstaged) {
+            assertStatusNew(c.getChange().change());
+        }
+        for (PushOneCommit.Result c : staged) {
+            assertStatusStaged(c.getChange().change());
+        }
+        assertStagingRefs(branches, staged);
+    }
+
+    private interface Request {
+        RestResponse call(PushOneCommit.Result c) throws Exception;
+    }
+
+    private void runConcurrently(List<PushOneCommit.Result> changes, Request request) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<RestResponse>> responses = new ArrayList<>();
+            for (PushOneCommit.Result c : changes) {
+                responses.add(executor.submit(() -> request.call(c)));
+            }
+            for (Future<RestResponse> response : responses) {
+                response.get().assertOK();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private RestResponse call_REST_API_Stage(String changeId, String revisionId, RestSession session)
+                                             throws Exception {
+        return session.post("/changes/" + changeId + "/revisions/" + revisionId + "/gerrit-plugin-qt-workflow~stage");
+    }
+
+    // Each staging ref holds exactly the staged changes of its own branch
+    private void assertStagingRefs(String[] branches, List<PushOneCommit.Result> staged) throws Exception {
+        for (String branch : branches) {
+            Set<String> expected = new HashSet<>();
+            for (PushOneCommit.Result c : staged) {
+                if (c.getChange().change().getDest().getShortName().equals(branch)) expected.add(c.getChangeId());
+            }
+            List<String> onStaging = new ArrayList<>();
+            for (RevCommit commit : getRemoteLog(R_STAGING + branch)) {
+                onStaging.addAll(commit.getFooterLines(FooterConstants.CHANGE_ID));
+            }
+            assertThat(onStaging).containsExactlyElementsIn(expected);
+        }
+    }
+
     private RevCommit qtStage(PushOneCommit.Result c) throws Exception {
         return qtStage(c, false, false, null);
     }
@@ -0,0 +1,348 @@
+// Copyright (C) 2019 The Qt Company
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.RestSession;
+import com.google.gerrit.acceptance.SshSession;
+import com.google.gerrit.acceptance.TestPlugin;
+import com.google.gerrit.acceptance.UseSsh;
+import com.google.gerrit.common.FooterConstants;
+import com.google.gerrit.common.data.Permission;
+import com.google.gerrit.extensions.api.projects.BranchInput;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Load test of the full stage, build and approve cycle. Changes on many
+ * branches of many projects are staged and unstaged by concurrent developer
+ * threads while one CI thread per branch creates builds and passes or fails
+ * them. At the end the throughput, the latency of each operation and the
+ * consistency violations are reported.
+ *
+ * Not part of the normal test run, see README.md. The size of the load is set
+ * with system properties: qtcodereview.load.projects, .branches (per project),
+ * .changes (per branch), .developers and .operations (per developer).
+ */
+@TestPlugin(
+    name = "gerrit-plugin-qt-workflow",
+    sysModule = "com.googlesource.gerrit.plugins.qtcodereview.QtModule",
+    sshModule = "com.googlesource.gerrit.plugins.qtcodereview.QtSshModule"
+)
+
+@UseSsh
+public class QtStagingLoadTest extends QtCodeReviewIT {
+
+    private static final int PROJECTS = Integer.getInteger("qtcodereview.load.projects", 2);
+    private static final int BRANCHES = Integer.getInteger("qtcodereview.load.branches", 3);
+    private static final int CHANGES = Integer.getInteger("qtcodereview.load.changes", 40);
+    private static final int DEVELOPERS = Integer.getInteger("qtcodereview.load.developers", 8);
+    private static final int OPERATIONS = Integer.getInteger("qtcodereview.load.operations", 100);
+
+    private static class LoadBranch {
+        final Project.NameKey project;
+        final String name;
+        final List<LoadChange> changes = new ArrayList<>();
+        int builds;
+
+        LoadBranch(Project.NameKey project, String name) {
+            this.project = project;
+            this.name = name;
+        }
+    }
+
+    private static class LoadChange {
+        final LoadBranch branch;
+        final PushOneCommit.Result result;
+
+        LoadChange(LoadBranch branch, PushOneCommit.Result result) {
+            this.branch = branch;
+            this.result = result;
+        }
+    }
+
+    private final List<LoadBranch> branches = new ArrayList<>();
+    private final List<LoadChange> changes = new ArrayList<>();
+    private final Map<String, Queue<Long>> latencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> rejected = new ConcurrentHashMap<>();
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger passedBuilds = new AtomicInteger();
+    private final AtomicInteger failedBuilds = new AtomicInteger();
+
+    @Test
+    public void stageBuildApproveCycle_ConcurrentLoad() throws Exception {
+        createChanges();
+
+        AtomicBoolean developersDone = new AtomicBoolean();
+        ExecutorService ci = Executors.newFixedThreadPool(branches.size());
+        ExecutorService developers = Executors.newFixedThreadPool(DEVELOPERS);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> ciDone = new ArrayList<>();
+            for (LoadBranch branch : branches) {
+                ciDone.add(ci.submit(() -> runCi(branch, developersDone)));
+            }
+            List<Future<?>> developing = new ArrayList<>();
+            for (int i = 0; i < DEVELOPERS; i++) {
+                long seed = i;
+                developing.add(developers.submit(() -> runDeveloper(new Random(seed))));
+            }
+            for (Future<?> f : developing) f.get();
+            developersDone.set(true);
+            for (Future<?> f : ciDone) f.get();
+        } finally {
+            developers.shutdownNow();
+            ci.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<String> violations = checkConsistency();
+        report(elapsed, violations);
+        assertThat(errors).isEmpty();
+        assertThat(violations).isEmpty();
+    }
+
+    private void createChanges() throws Exception {
+        for (int p = 0; p < PROJECTS; p++) {
+            Project.NameKey projectKey = createProject("load" + p);
+            grant(projectKey, "refs/heads/*", Permission.QT_STAGE, false, REGISTERED_USERS);
+            RevCommit initialHead = getRemoteHead(projectKey, "master");
+            TestRepository<InMemoryRepository> repo = cloneProject(projectKey, user);
+
+            for (int b = 0; b < BRANCHES; b++) {
+                String name = "branch" + b;
+                gApi.projects().name(projectKey.get()).branch(name).create(new BranchInput());
+                LoadBranch branch = new LoadBranch(projectKey, name);
+                branches.add(branch);
+
+                for (int c = 0; c < CHANGES; c++) {
+                    // every change has its own file, so that no stage or build conflicts
+                    repo.reset(initialHead);
+                    String file = name + "_file" + c;
+                    PushOneCommit push = pushFactory.create(db, user.getIdent(), repo,
+                                                            "load change " + file, file, CONTENT_DATA);
+                    PushOneCommit.Result result = push.to(R_PUSH + name);
+                    result.assertOkStatus();
+                    approve(result.getChangeId());
+                    LoadChange change = new LoadChange(branch, result);
+                    branch.changes.add(change);
+                    changes.add(change);
+                }
+            }
+        }
+    }
+
+    private void runDeveloper(Random random) {
+        RestSession session = new RestSession(server, user);
+        for (int i = 0; i < OPERATIONS; i++) {
+            LoadChange change = changes.get(random.nextInt(changes.size()));
+            PushOneCommit.Result c = change.result;
+            try {
+                if (random.nextInt(4) > 0) {
+                    String url = "/changes/" + c.getChangeId() + "/revisions/" + c.getCommit().getName()
+                                 + "/gerrit-plugin-qt-workflow~stage";
+                    rest("stage", session, url);
+                } else {
+                    String url = "/changes/" + c.getChangeId() + "/revisions/1"
+                                 + "/gerrit-plugin-qt-workflow~unstage";
+                    rest("unstage", session, url);
+                }
+            } catch (Exception e) {
+                errors.add("developer: " + e);
+            }
+        }
+    }
+
+    private void rest(String operation, RestSession session, String url) throws Exception {
+        long start = System.nanoTime();
+        RestResponse response = session.post(url);
+        record(operation, start);
+        int status = response.getStatusCode();
+        if (status >= 500) {
+            errors.add(operation + " " + url + ": " + status + " " + response.getEntityContent());
+        } else if (status >= 400) {
+            // e.g. staging a change that is already staged
+            reject(operation);
+        }
+    }
+
+    private void runCi(LoadBranch branch, AtomicBoolean developersDone) {
+        SshSession session = new SshSession(sshKeys, server, admin);
+        Random random = new Random(branch.name.hashCode());
+        try {
+            while (true) {
+                // read before the build, so that changes staged by then are in it
+                boolean done = developersDone.get();
+                String buildId = branch.name + "_" + ++branch.builds;
+                String output = ssh("new-build", session, "staging-new-build"
+                                    + " --project " + branch.project.get()
+                                    + " --staging-branch " + branch.name
+                                    + " --build-id " + buildId);
+                if (output == null) {
+                    if (done) return;
+                    Thread.sleep(50);
+                    continue;
+                }
+
+                boolean pass = random.nextInt(5) > 0;
+                String result = pass ? "pass" : "fail";
+                output = ssh(pass ? "approve" : "fail", session, "staging-approve"
+                             + " --project " + branch.project.get()
+                             + " --branch " + branch.name
+                             + " --build-id " + buildId
+                             + " --result " + result
+                             + " --message " + (pass ? BUILD_PASS_MESSAGE : BUILD_FAIL_MESSAGE));
+                if (output != null) (pass ? passedBuilds : failedBuilds).incrementAndGet();
+            }
+        } catch (Exception e) {
+            errors.add("ci " + branch.project.get() + ":" + branch.name + ": " + e);
+        } finally {
+            session.close();
+        }
+    }
+
+    /** Runs a plugin SSH command, returns null if it was rejected. */
+    private String ssh(String operation, SshSession session, String command) throws Exception {
+        long start = System.nanoTime();
+        String output = session.exec("gerrit-plugin-qt-workflow " + command);
+        record(operation, start);
+        String error = session.getError();
+        if (error == null) return output;
+
+        if (error.contains("No changes in staging branch") || error.contains("Staging ref not found")) {
+            // nothing staged since the last build
+            reject(operation);
+        } else {
+            errors.add(operation + " " + command + ": " + error.trim());
+        }
+        return null;
+    }
+
+    private void record(String operation, long start) {
+        latencies.computeIfAbsent(operation, o -> new ConcurrentLinkedQueue<>())
+                 .add(System.nanoTime() - start);
+    }
+
+    private void reject(String operation) {
+        rejected.computeIfAbsent(operation, o -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Checks the status of every change against the refs of its branch, once
+     * the load is over and every build has been approved or failed.
+     */
+    private List<String> checkConsistency() throws Exception {
+        List<String> violations = new ArrayList<>();
+        for (LoadBranch branch : branches) {
+            String where = branch.project.get() + ":" + branch.name;
+            List<String> onBranch = listChangeIds(branch.project, R_HEADS + branch.name, null);
+            List<String> onStaging = listChangeIds(branch.project, R_STAGING + branch.name,
+                                                   R_HEADS + branch.name);
+            if (new HashSet<>(onStaging).size() != onStaging.size()) {
+                violations.add(where + ": same change staged twice " + onStaging);
+            }
+
+            for (LoadChange change : branch.changes) {
+                String changeId = change.result.getChangeId();
+                Change.Status status = change.result.getChange().change().getStatus();
+                String what = where + ": " + status + " change " + changeId;
+
+                if (status == Change.Status.STAGED && !onStaging.contains(changeId)) {
+                    violations.add(what + " missing from the staging ref");
+                }
+                if (status != Change.Status.STAGED && onStaging.contains(changeId)) {
+                    violations.add(what + " on the staging ref");
+                }
+                if (status == Change.Status.INTEGRATING) {
+                    violations.add(what + " after all builds are done");
+                }
+                if (status == Change.Status.MERGED && !onBranch.contains(changeId)) {
+                    violations.add(what + " missing from the branch");
+                }
+                if (status != Change.Status.MERGED && onBranch.contains(changeId)) {
+                    violations.add(what + " on the branch");
+                }
+            }
+        }
+        return violations;
+    }
+
+    private List<String> listChangeIds(Project.NameKey projectKey, String ref, String notInRef)
+            throws Exception {
+        List<String> changeIds = new ArrayList<>();
+        try (Repository repo = repoManager.openRepository(projectKey);
+             RevWalk rw = new RevWalk(repo)) {
+            Ref tip = repo.exactRef(ref);
+            if (tip == null) return changeIds;
+            rw.markStart(rw.parseCommit(tip.getObjectId()));
+            if (notInRef != null) rw.markUninteresting(rw.parseCommit(repo.exactRef(notInRef).getObjectId()));
+            for (RevCommit commit : rw) {
+                changeIds.addAll(commit.getFooterLines(FooterConstants.CHANGE_ID));
+            }
+        }
+        return changeIds;
+    }
+
+    private void report(long elapsed, List<String> violations) throws Exception {
+        double seconds = elapsed / 1e9;
+        int merged = 0;
+        for (LoadChange change : changes) {
+            if (change.result.getChange().change().getStatus() == Change.Status.MERGED) merged++;
+        }
+
+        StringBuilder report = new StringBuilder("\nStaging load test: ");
+        report.append(String.format("%d projects, %d branches, %d changes, %d developers\n",
+                                    PROJECTS, branches.size(), changes.size(), DEVELOPERS));
+        report.append(String.format("  %.1f s, %d changes merged (%.2f cycles/s), %d builds passed, %d failed\n",
+                                    seconds, merged, merged / seconds, passedBuilds.get(), failedBuilds.get()));
+        report.append(String.format("  %-10s %8s %8s %10s %10s\n", "operation", "count", "rejected", "p50 ms", "p99 ms"));
+        for (Map.Entry<String, Queue<Long>> e : new TreeMap<>(latencies).entrySet()) {
+            List<Long> sorted = new ArrayList<>(e.getValue());
+            Collections.sort(sorted);
+            AtomicInteger r = rejected.get(e.getKey());
+            report.append(String.format("  %-10s %8d %8d %10.1f %10.1f\n", e.getKey(), sorted.size(),
+                                        r == null ? 0 : r.get(),
+                                        percentile(sorted, 0.50), percentile(sorted, 0.99)));
+        }
+        report.append(String.format("  %d errors, %d consistency violations\n", errors.size(), violations.size()));
+        for (String error : errors) report.append("  error: ").append(error).append('\n');
+        for (String violation : violations) report.append("  violation: ").append(violation).append('\n');
+        System.err.print(report);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int i = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, i)) / 1e6;
+    }
+
+}
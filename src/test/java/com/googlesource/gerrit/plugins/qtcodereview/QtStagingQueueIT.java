@@ -0,0 +1,98 @@
+// Copyright (C) 2019 The Qt Company
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.acceptance.GerritConfig;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.TestPlugin;
+import com.google.gerrit.acceptance.UseSsh;
+
+import com.google.gerrit.common.data.Permission;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@TestPlugin(
+    name = "gerrit-plugin-qt-workflow",
+    sysModule = "com.googlesource.gerrit.plugins.qtcodereview.QtModule",
+    sshModule = "com.googlesource.gerrit.plugins.qtcodereview.QtSshModule"
+)
+
+@UseSsh
+public class QtStagingQueueIT extends QtCodeReviewIT {
+
+    @Before
+    public void SetDefaultPermissions() throws Exception {
+        grant(project, "refs/heads/master", Permission.QT_STAGE, false, REGISTERED_USERS);
+    }
+
+    @Test
+    @GerritConfig(name = "plugin.gerrit-plugin-qt-workflow.asyncStaging", value = "true")
+    public void multiChange_AsyncStage_UnStage() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+
+        approve(c1.getChangeId());
+        approve(c2.getChangeId());
+
+        RestResponse response = call_REST_API_Stage(c1.getChangeId(), c1.getCommit().getName());
+        response.assertOK();
+        assertThat(response.getEntityContent()).contains("request");
+        call_REST_API_Stage(c2.getChangeId(), c2.getCommit().getName()).assertOK();
+
+        waitForQueue("master");
+        String result = qtStagingQueue("master");
+        assertThat(result).contains("STAGE " + c1.getChange().getId() + " refs/heads/master DONE");
+        assertThat(result).contains("STAGE " + c2.getChange().getId() + " refs/heads/master DONE");
+
+        assertThat(getRemoteHead(project, R_HEADS + "master")).isEqualTo(initialHead); // master is not updated
+        List<RevCommit> staging = getRemoteLog(R_STAGING + "master");
+        assertCherryPick(staging.get(0), c2.getCommit(), staging.get(1));
+        assertCherryPick(staging.get(1), c1.getCommit(), initialHead);
+        assertStatusStaged(c1.getChange().change());
+        assertStatusStaged(c2.getChange().change());
+
+        call_REST_API_UnStage(c1.getChangeId(), getCurrentPatchId(c1)).assertOK();
+
+        waitForQueue("master");
+        assertThat(qtStagingQueue("master")).contains("UNSTAGE " + c1.getChange().getId() + " refs/heads/master DONE");
+
+        RevCommit stagingHead = getRemoteHead(project, R_STAGING + "master");
+        assertCherryPick(stagingHead, c2.getCommit(), initialHead);
+        assertStatusNew(c1.getChange().change());
+        assertStatusStaged(c2.getChange().change());
+    }
+
+    @Test
+    public void errorStagingQueue_NotEnabled() throws Exception {
+        adminSshSession.exec("gerrit-plugin-qt-workflow staging-queue --project " + project.get());
+        assertThat(adminSshSession.getError()).contains("asynchronous staging is not enabled");
+    }
+
+    private String qtStagingQueue(String branch) throws Exception {
+        String result = adminSshSession.exec("gerrit-plugin-qt-workflow staging-queue"
+                                             + " --project " + project.get() + " --branch " + branch);
+        assertThat(adminSshSession.getError()).isNull();
+        return result;
+    }
+
+    private void waitForQueue(String branch) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String result = qtStagingQueue(branch);
+            if (!result.contains("PENDING") && !result.contains("RUNNING")) return;
+            Thread.sleep(100);
+        }
+        throw new AssertionError("staging queue of " + branch + " not done");
+    }
+
+}
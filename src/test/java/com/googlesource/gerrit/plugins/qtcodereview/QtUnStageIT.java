@@ -6,6 +6,7 @@ import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.gerrit.acceptance.GerritConfig;
 import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.RestResponse;
 import com.google.gerrit.acceptance.TestPlugin;
@@ -90,6 +91,68 @@ public class QtUnStageIT extends QtCodeReviewIT {
         assertStatusStaged(c3.getChange().change());
     }
 
+    @Test
+    @GerritConfig(name = "plugin.gerrit-plugin-qt-workflow.stagingRebuildDelay", value = "3000")
+    public void multiChange_UnStage_DelayedRebuild() throws Exception {
+        // Push 3 independent commits
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c3 = pushCommit("master", "commitmsg3", "file3", "content3");
+
+        approve(c1.getChangeId());
+        QtStage(c1);
+        approve(c2.getChangeId());
+        QtStage(c2);
+        approve(c3.getChangeId());
+        QtStage(c3);
+        RevCommit oldStagingHead = getRemoteHead(project, R_STAGING + "master");
+
+        // both unstages are covered by one rebuild after the delay
+        QtUnStage(c1);
+        QtUnStage(c2);
+        assertThat(getRemoteHead(project, R_STAGING + "master")).isEqualTo(oldStagingHead);
+
+        assertThat(getRebuildScheduler().awaitIdle(10000)).isTrue();
+        RevCommit stagingHead = getRemoteHead(project, R_STAGING + "master");
+        assertCherryPick(stagingHead, c3.getCommit(), initialHead);
+        assertRefUpdatedEvents(R_STAGING + "master", oldStagingHead, stagingHead);
+        assertStatusNew(c1.getChange().change());
+        assertStatusNew(c2.getChange().change());
+        assertStatusStaged(c3.getChange().change());
+    }
+
+    @Test
+    @GerritConfig(name = "plugin.gerrit-plugin-qt-workflow.stagingRebuildDelay", value = "600000")
+    public void multiChange_UnStage_DelayedRebuild_NewBuild() throws Exception {
+        RevCommit initialHead = getRemoteHead();
+        PushOneCommit.Result c1 = pushCommit("master", "commitmsg1", "file1", "content1");
+        testRepo.reset(initialHead);
+        PushOneCommit.Result c2 = pushCommit("master", "commitmsg2", "file2", "content2");
+
+        approve(c1.getChangeId());
+        QtStage(c1);
+        approve(c2.getChangeId());
+        QtStage(c2);
+
+        // the rebuild is still pending when the build is created
+        QtUnStage(c1);
+        QtNewBuild("master", "test-build-260");
+
+        RevCommit buildHead = getRemoteHead(project, R_BUILDS + "test-build-260");
+        assertCherryPick(buildHead, c2.getCommit(), initialHead);
+        assertThat(getRemoteHead(project, R_STAGING + "master")).isEqualTo(buildHead);
+        assertStatusNew(c1.getChange().change());
+        assertStatusIntegrating(c2.getChange().change());
+        assertThat(getRebuildScheduler().awaitIdle(0)).isTrue(); // nothing left pending
+    }
+
+    private QtRebuildScheduler getRebuildScheduler() {
+        return plugin.getSysInjector().getInstance(QtRebuildScheduler.class);
+    }
+
     @Test
     public void multiChange_UnStage_Middle() throws Exception {
         // Push 3 independent commits
@@ -0,0 +1,68 @@
+// Copyright (C) 2019 The Qt Company
+
+package com.googlesource.gerrit.plugins.qtcodereview;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import org.junit.Test;
+
+public class QtUtilTest {
+
+    private static final String CHANGE_ID_1 = "I0123456789abcdef0123456789abcdef01234567";
+    private static final String CHANGE_ID_2 = "Ifedcba9876543210fedcba9876543210fedcba98";
+
+    @Test
+    public void changeId() {
+        assertThat(getChangeId("Subject\n\nBody text.\n\nChange-Id: " + CHANGE_ID_1 + "\n")).isEqualTo(CHANGE_ID_1);
+    }
+
+    @Test
+    public void changeId_KeyIgnoresCase() {
+        assertThat(getChangeId("Subject\n\nchange-id: " + CHANGE_ID_1 + "\n")).isEqualTo(CHANGE_ID_1);
+        assertThat(getChangeId("Subject\n\nCHANGE-ID: " + CHANGE_ID_1 + "\n")).isEqualTo(CHANGE_ID_1);
+    }
+
+    @Test
+    public void changeId_LastOfSeveral() {
+        String message = "Subject\n\n"
+                         + "Change-Id: " + CHANGE_ID_1 + "\n"
+                         + "Reviewed-by: Qt Reviewer <reviewer@qt.io>\n"
+                         + "Change-Id: " + CHANGE_ID_2 + "\n";
+        assertThat(getChangeId(message)).isEqualTo(CHANGE_ID_2);
+    }
+
+    @Test
+    public void changeId_TrailingBlankLines() {
+        assertThat(getChangeId("Subject\n\nChange-Id: " + CHANGE_ID_1 + "\n\n\n")).isEqualTo(CHANGE_ID_1);
+    }
+
+    @Test
+    public void changeId_NoTrailingNewLine() {
+        assertThat(getChangeId("Subject\n\nChange-Id: " + CHANGE_ID_1)).isEqualTo(CHANGE_ID_1);
+    }
+
+    @Test
+    public void changeId_NotInLastParagraph() {
+        assertThat(getChangeId("Subject\n\nChange-Id: " + CHANGE_ID_1 + "\n\nMore text.\n")).isNull();
+    }
+
+    @Test
+    public void changeId_NoBody() {
+        assertThat(getChangeId("Subject\n")).isNull();
+        // the subject line is never a footer
+        assertThat(getChangeId("Change-Id: " + CHANGE_ID_1 + "\n")).isNull();
+    }
+
+    private static String getChangeId(String message) {
+        String raw = "tree " + ObjectId.zeroId().name() + "\n"
+                     + "author Qt Test <test@qt.io> 1546300800 +0000\n"
+                     + "committer Qt Test <test@qt.io> 1546300800 +0000\n"
+                     + "\n"
+                     + message;
+        return QtUtil.getChangeId(RevCommit.parse(raw.getBytes(UTF_8)));
+    }
+}